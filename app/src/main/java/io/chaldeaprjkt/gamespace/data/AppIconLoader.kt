@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.data
+
+import android.content.Context
+import android.content.pm.PackageInfo
+import android.graphics.Bitmap
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
+import android.os.Handler
+import android.os.Looper
+import android.util.LruCache
+import android.widget.ImageView
+import androidx.core.graphics.drawable.toBitmap
+import java.util.WeakHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Loads app icons for the app lists off the main thread. Icons are decoded
+ * on a small fixed pool, scaled to the size they are shown at and kept in
+ * a memory cache bounded by bytes. Icons up to [AppInfoCache.iconSize] come
+ * from the disk cache, bigger ones from the app itself. An icon that can't
+ * be loaded is replaced by the default activity icon.
+ *
+ * Every request belongs to a target, usually the view or preference that
+ * shows the icon. A new request for the same target or [cancel] drops the
+ * previous one, so a recycled view never gets the icon of its old item.
+ * All methods must be called on the main thread.
+ */
+class AppIconLoader(context: Context, private val appInfoCache: AppInfoCache) {
+
+    private val pm = context.packageManager
+    private val resources = context.resources
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val executor = Executors.newFixedThreadPool(POOL_SIZE)
+    private val requests = WeakHashMap<Any, Future<*>>()
+
+    // icons are cached on their first load, the index is written once loading settles
+    private val flushCache = Runnable { executor.execute { appInfoCache.flush() } }
+
+    private val memoryCache = object : LruCache<String, Bitmap>(MEMORY_CACHE_BYTES) {
+        override fun sizeOf(key: String, value: Bitmap) = value.allocationByteCount
+    }
+
+    /** Loads the icon of [pkg] at [sizePx] into [view], clearing it meanwhile */
+    fun load(view: ImageView, pkg: PackageInfo, sizePx: Int) {
+        view.setImageDrawable(null)
+        load(view, pkg, sizePx) { view.setImageDrawable(it) }
+    }
+
+    /** Calls [onLoaded] with the icon, right away if it is in memory already */
+    fun load(target: Any, pkg: PackageInfo, sizePx: Int, onLoaded: (Drawable) -> Unit) {
+        cancel(target)
+        val key = "${pkg.packageName}:${pkg.lastUpdateTime}:$sizePx"
+        memoryCache.get(key)?.let {
+            onLoaded(BitmapDrawable(resources, it))
+            return
+        }
+        var future: Future<*>? = null
+        future = executor.submit {
+            val bitmap = decode(pkg, sizePx)
+            if (bitmap != null) {
+                memoryCache.put(key, bitmap)
+                mainHandler.removeCallbacks(flushCache)
+                mainHandler.postDelayed(flushCache, FLUSH_DELAY_MS)
+            }
+            mainHandler.post {
+                if (requests[target] !== future) return@post
+                requests.remove(target)
+                // an app without a loadable icon still gets one, like the launcher does
+                onLoaded(bitmap?.let { BitmapDrawable(resources, it) } ?: pm.defaultActivityIcon)
+            }
+        }
+        requests[target] = future
+    }
+
+    fun cancel(target: Any) {
+        requests.remove(target)?.cancel(false)
+    }
+
+    private fun decode(pkg: PackageInfo, sizePx: Int): Bitmap? {
+        if (sizePx <= appInfoCache.iconSize) {
+            appInfoCache.icon(pkg)?.let { return scaled(it, sizePx) }
+        }
+        val info = pkg.applicationInfo ?: return null
+        return info.loadIcon(pm).toBitmap(sizePx, sizePx)
+    }
+
+    private fun scaled(bitmap: Bitmap, sizePx: Int) =
+        if (bitmap.width == sizePx && bitmap.height == sizePx) bitmap
+        else Bitmap.createScaledBitmap(bitmap, sizePx, sizePx, true)
+
+    companion object {
+        private const val POOL_SIZE = 2
+        private const val MEMORY_CACHE_BYTES = 8 * 1024 * 1024
+        private const val FLUSH_DELAY_MS = 2000L
+    }
+}
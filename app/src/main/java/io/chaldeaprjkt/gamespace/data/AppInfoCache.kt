@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.data
+
+import android.content.Context
+import android.content.pm.PackageInfo
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.AtomicFile
+import android.util.Log
+import androidx.core.graphics.drawable.toBitmap
+import io.chaldeaprjkt.gamespace.utils.dp
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * On-disk cache of app labels and downsampled icons, so the app lists don't
+ * have to load other apps' resources every time they are shown. Entries are
+ * keyed by package name and only valid for the lastUpdateTime they were
+ * resolved for, an updated app is resolved again on its next lookup.
+ *
+ * Labels and icon locations live in a small index file that is read on
+ * first use. Icons are encoded on their first [icon] request, appended to a
+ * separate blob file and read from their offset afterwards. Call [flush]
+ * after a batch of lookups to persist what was resolved. Every method may
+ * load from disk or from the app, none of them belongs on the main thread.
+ */
+class AppInfoCache(context: Context, private val dir: File) {
+
+    private class Record(
+        val lastUpdateTime: Long,
+        val label: String,
+        var iconOffset: Long,
+        var iconLength: Int,
+    )
+
+    private val pm = context.packageManager
+    private val indexFile = AtomicFile(File(dir, INDEX_NAME))
+    private val iconFile = File(dir, ICONS_NAME)
+    /** Size of the cached icons in pixels */
+    val iconSize = ICON_SIZE_DP.dp
+
+    // indexLock guards the records, iconLock the blob file. Label lookups
+    // only wait for the index, so reading or writing icons never holds them
+    // up. Whoever needs both takes iconLock first.
+    private val indexLock = Any()
+    private val iconLock = Any()
+
+    private var records: HashMap<String, Record>? = null
+    private var isDirty = false
+    private var staleIconBytes = 0L
+
+    fun label(pkg: PackageInfo): String = recordOf(pkg)?.label ?: pkg.packageName
+
+    /** The app's icon downsampled to [iconSize], null if it can't be loaded */
+    fun icon(pkg: PackageInfo): Bitmap? {
+        val record = recordOf(pkg) ?: return null
+        readIcon(pkg, record)?.let { return BitmapFactory.decodeByteArray(it, 0, it.size) }
+        val info = pkg.applicationInfo ?: return null
+        val bitmap = info.loadIcon(pm).toBitmap(iconSize, iconSize)
+        storeIcon(pkg, record, encodeIcon(bitmap))
+        return bitmap
+    }
+
+    /** Writes the index if anything was resolved since the last flush */
+    fun flush() {
+        synchronized(iconLock) {
+            synchronized(indexLock) {
+                val map = records ?: return
+                if (!isDirty) return
+                if (staleIconBytes > iconFile.length() / 2) compactIcons(map)
+                writeIndex(map)
+            }
+        }
+    }
+
+    // Resolves only the label on a miss, icons are left to the first icon()
+    private fun recordOf(pkg: PackageInfo): Record? {
+        synchronized(indexLock) {
+            val map = records ?: load().also { records = it }
+            map[pkg.packageName]?.takeIf { it.lastUpdateTime == pkg.lastUpdateTime }?.let { return it }
+        }
+        val info = pkg.applicationInfo ?: return null
+        val record = Record(pkg.lastUpdateTime, info.loadLabel(pm).toString(), 0L, -1)
+        synchronized(indexLock) {
+            val map = records!!
+            map[pkg.packageName]?.let {
+                // resolved by another thread meanwhile
+                if (it.lastUpdateTime == pkg.lastUpdateTime) return it
+                staleIconBytes += it.iconLength.coerceAtLeast(0)
+            }
+            map[pkg.packageName] = record
+            isDirty = true
+        }
+        return record
+    }
+
+    private fun readIcon(pkg: PackageInfo, record: Record): ByteArray? = synchronized(iconLock) {
+        val offset: Long
+        val length: Int
+        synchronized(indexLock) {
+            offset = record.iconOffset
+            length = record.iconLength
+        }
+        if (length <= 0) return null
+        try {
+            RandomAccessFile(iconFile, "r").use {
+                val bytes = ByteArray(length)
+                it.seek(offset)
+                it.readFully(bytes)
+                bytes
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to read cached icon of ${pkg.packageName}", e)
+            null
+        }
+    }
+
+    private fun storeIcon(pkg: PackageInfo, record: Record, bytes: ByteArray) {
+        synchronized(iconLock) {
+            val offset = try {
+                appendIcon(bytes)
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to cache icon of ${pkg.packageName}", e)
+                return
+            }
+            synchronized(indexLock) {
+                // the app was updated or its icon stored by another thread meanwhile
+                if (records?.get(pkg.packageName) !== record || record.iconLength > 0) {
+                    staleIconBytes += bytes.size
+                    return
+                }
+                record.iconOffset = offset
+                record.iconLength = bytes.size
+                isDirty = true
+            }
+        }
+    }
+
+    private fun writeIndex(map: HashMap<String, Record>) {
+        var stream: FileOutputStream? = null
+        try {
+            stream = indexFile.startWrite()
+            val out = DataOutputStream(BufferedOutputStream(stream))
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(map.size)
+            for ((packageName, record) in map) {
+                out.writeUTF(packageName)
+                out.writeLong(record.lastUpdateTime)
+                out.writeUTF(record.label)
+                out.writeLong(record.iconOffset)
+                out.writeInt(record.iconLength)
+            }
+            out.flush()
+            indexFile.finishWrite(stream)
+            isDirty = false
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to write app info cache", e)
+            stream?.let { indexFile.failWrite(it) }
+        }
+    }
+
+    private fun load(): HashMap<String, Record> {
+        val map = HashMap<String, Record>()
+        if (!indexFile.baseFile.exists()) return map
+        try {
+            DataInputStream(BufferedInputStream(indexFile.openRead())).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) return map
+                repeat(input.readInt()) {
+                    val packageName = input.readUTF()
+                    map[packageName] = Record(input.readLong(), input.readUTF(),
+                        input.readLong(), input.readInt())
+                }
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Dropping unreadable app info cache", e)
+            map.clear()
+        }
+        // icons written after the last index flush aren't referenced anymore
+        val referenced = map.values.sumOf { it.iconLength.coerceAtLeast(0).toLong() }
+        staleIconBytes = (iconFile.length() - referenced).coerceAtLeast(0L)
+        return map
+    }
+
+    private fun encodeIcon(bitmap: Bitmap): ByteArray =
+        ByteArrayOutputStream().use {
+            bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSLESS, 100, it)
+            it.toByteArray()
+        }
+
+    private fun appendIcon(bytes: ByteArray): Long {
+        dir.mkdirs()
+        return RandomAccessFile(iconFile, "rw").use {
+            val offset = it.length()
+            it.seek(offset)
+            it.write(bytes)
+            offset
+        }
+    }
+
+    // rewrites the blob with only the icons still referenced by the index
+    private fun compactIcons(map: HashMap<String, Record>) {
+        val compacted = File(dir, "$ICONS_NAME.tmp")
+        try {
+            RandomAccessFile(iconFile, "r").use { input ->
+                RandomAccessFile(compacted, "rw").use { output ->
+                    output.setLength(0)
+                    for (record in map.values) {
+                        if (record.iconLength <= 0) continue
+                        val bytes = ByteArray(record.iconLength)
+                        input.seek(record.iconOffset)
+                        input.readFully(bytes)
+                        record.iconOffset = output.filePointer
+                        output.write(bytes)
+                    }
+                }
+            }
+            if (compacted.renameTo(iconFile)) staleIconBytes = 0L
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to compact cached icons", e)
+            compacted.delete()
+        }
+    }
+
+    companion object {
+        private const val TAG = "AppInfoCache"
+        const val DIR_NAME = "app_info_cache"
+        private const val INDEX_NAME = "index.bin"
+        private const val ICONS_NAME = "icons.bin"
+
+        private const val MAGIC = 0x47534149 // GSAI
+        private const val VERSION = 1
+
+        private const val ICON_SIZE_DP = 48
+    }
+}
@@ -42,6 +42,10 @@ class AppSettings @Inject constructor(private val context: Context) {
         get() = db.getBoolean("show_fps", false)
         set(point) = db.edit().putBoolean("show_fps", point).apply()
 
+    var showCpu
+        get() = db.getBoolean("show_cpu", false)
+        set(point) = db.edit().putBoolean("show_cpu", point).apply()
+
     var noAutoBrightness
         get() = db.getBoolean(KEY_AUTO_BRIGHTNESS_DISABLE, true)
         set(it) = db.edit().putBoolean(KEY_AUTO_BRIGHTNESS_DISABLE, it).apply()
@@ -58,6 +62,10 @@ class AppSettings @Inject constructor(private val context: Context) {
         get() = db.getBoolean(KEY_DANMAKU_NOTIFICATION_MODE, true)
         set(value) = db.edit().putBoolean(KEY_DANMAKU_NOTIFICATION_MODE, value).apply()
 
+    var danmakuFilterRules: String
+        get() = db.getString(KEY_DANMAKU_FILTER_RULES, "") ?: ""
+        set(value) = db.edit().putString(KEY_DANMAKU_FILTER_RULES, value).apply()
+
     var callsMode: Int
         get() = db.getString(KEY_CALLS_MODE, "0")?.toIntOrNull() ?: 0
         set(value) = db.edit().putString(KEY_CALLS_MODE, value.toString()).apply()
@@ -78,15 +86,21 @@ class AppSettings @Inject constructor(private val context: Context) {
         get() = db.getBoolean(KEY_LOCK_GESTURE, false)
         set(value) = db.edit().putBoolean(KEY_LOCK_GESTURE, value).apply()
 
+    var thermalAutoBattery
+        get() = db.getBoolean(KEY_THERMAL_AUTO_BATTERY, false)
+        set(value) = db.edit().putBoolean(KEY_THERMAL_AUTO_BATTERY, value).apply()
+
     companion object {
         const val KEY_AUTO_BRIGHTNESS_DISABLE = "gamespace_auto_brightness_disabled"
         const val KEY_3SCREENSHOT_DISABLE = "gamespace_tfgesture_disabled"
         const val KEY_STAY_AWAKE = "gamespace_stay_awake"
         const val KEY_DANMAKU_NOTIFICATION_MODE = "gamespace_danmaku_notification_mode"
+        const val KEY_DANMAKU_FILTER_RULES = "gamespace_danmaku_filter_rules"
         const val KEY_CALLS_MODE = "gamespace_calls_mode"
         const val KEY_RINGER_MODE = "gamespace_ringer_mode"
         const val KEY_MENU_OPACITY = "gamespace_menu_opacity"
         const val KEY_ADB_DISABLE = "gamespace_adb_disabled"
         const val KEY_LOCK_GESTURE = "gamespace_lock_gesture"
+        const val KEY_THERMAL_AUTO_BATTERY = "gamespace_thermal_auto_battery"
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.data
+
+import android.content.Context
+import com.google.gson.Gson
+import com.google.gson.reflect.TypeToken
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Running performance statistics of a game, one per version and
+ * intervention config. Updated in place with every session, so checking
+ * for a regression never needs to look at the session history again.
+ */
+data class PerformanceBaseline(
+    val versionCode: Long,
+    /** The Game Mode intervention (downscale, ANGLE) the sessions ran with */
+    val configKey: String,
+    var sessions: Int = 0,
+    var fpsAverage: Float = 0f,
+    /** Sum of squared deviations of [fpsAverage], for its variance */
+    var fpsAverageM2: Float = 0f,
+    var fpsLow1Percent: Float = 0f,
+    var fpsLow01Percent: Float = 0f,
+    var startLatencyMs: Float = 0f,
+    var drainPerHourMah: Float = 0f,
+    var lastUpdated: Long = 0L,
+) {
+    val fpsStandardError: Float
+        get() = if (sessions < 2) Float.MAX_VALUE
+        else sqrt(fpsAverageM2 / (sessions - 1) / sessions)
+
+    fun add(report: SessionReport) {
+        sessions++
+        val delta = report.fpsAverage - fpsAverage
+        fpsAverage += delta / sessions
+        fpsAverageM2 += delta * (report.fpsAverage - fpsAverage)
+        fpsLow1Percent += (report.fpsLow1Percent - fpsLow1Percent) / sessions
+        fpsLow01Percent += (report.fpsLow01Percent - fpsLow01Percent) / sessions
+        startLatencyMs += (report.startLatencyMs - startLatencyMs) / sessions
+        drainPerHourMah += (report.drainPerHourMah - drainPerHourMah) / sessions
+        lastUpdated = report.startTime
+    }
+}
+
+/** How the latest baseline of a game compares to the one before it */
+data class PerformanceComparison(
+    val current: PerformanceBaseline,
+    val previous: PerformanceBaseline?,
+) {
+    val versionChanged: Boolean
+        get() = previous != null && previous.versionCode != current.versionCode
+
+    val fpsChange: Float
+        get() = relativeChange(previous?.fpsAverage, current.fpsAverage)
+
+    val fpsLow1Change: Float
+        get() = relativeChange(previous?.fpsLow1Percent, current.fpsLow1Percent)
+
+    val drainChange: Float
+        get() = relativeChange(previous?.drainPerHourMah, current.drainPerHourMah)
+
+    val startLatencyChangeMs: Float
+        get() = previous?.let { current.startLatencyMs - it.startLatencyMs } ?: 0f
+
+    /**
+     * Worse by more than the noise between sessions: the FPS average has to
+     * drop by more than both a fixed margin and two standard errors.
+     */
+    val isRegression: Boolean
+        get() {
+            val before = previous ?: return false
+            if (current.sessions < MIN_SESSIONS || before.sessions < MIN_SESSIONS) return false
+            val noise = 2 * sqrt(sq(current.fpsStandardError) + sq(before.fpsStandardError))
+            val fpsDrop = before.fpsAverage - current.fpsAverage
+            val fpsWorse = fpsDrop > max(noise, before.fpsAverage * FPS_MARGIN)
+            val lowsWorse = fpsLow1Change < -LOWS_MARGIN
+            val drainWorse = before.drainPerHourMah > 0 && drainChange > DRAIN_MARGIN
+            return fpsWorse || lowsWorse || drainWorse
+        }
+
+    private fun relativeChange(before: Float?, now: Float) =
+        if (before == null || before <= 0f) 0f else (now - before) / before
+
+    private fun sq(value: Float) = value * value
+
+    companion object {
+        const val MIN_SESSIONS = 3
+        private const val FPS_MARGIN = 0.05f
+        private const val LOWS_MARGIN = 0.10f
+        private const val DRAIN_MARGIN = 0.15f
+    }
+}
+
+class PerformanceBaselines(
+    private val context: Context,
+    private val gson: Gson,
+) {
+
+    private val db by lazy { context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE) }
+    private val listType = object : TypeToken<MutableList<PerformanceBaseline>>() {}.type
+
+    /** Baselines of [packageName], the most recently updated first */
+    @Synchronized
+    fun baselinesFor(packageName: String): List<PerformanceBaseline> = load(packageName)
+
+    @Synchronized
+    fun update(report: SessionReport) {
+        // short or FPS-less sessions would only add noise
+        if (report.duration < MIN_SESSION_MS || report.fpsSamples < MIN_FPS_SAMPLES) return
+        val baselines = load(report.packageName)
+        val index = baselines.indexOfFirst {
+            it.versionCode == report.versionCode && it.configKey == report.configKey
+        }
+        val baseline = if (index >= 0) baselines.removeAt(index)
+        else PerformanceBaseline(report.versionCode, report.configKey)
+        baseline.add(report)
+        baselines.add(0, baseline)
+        while (baselines.size > MAX_BASELINES) baselines.removeAt(baselines.size - 1)
+        save(report.packageName, baselines)
+    }
+
+    @Synchronized
+    fun compare(packageName: String): PerformanceComparison? {
+        val baselines = load(packageName)
+        val current = baselines.firstOrNull() ?: return null
+        val previous = baselines.drop(1).firstOrNull {
+            it.sessions >= PerformanceComparison.MIN_SESSIONS
+        }
+        return PerformanceComparison(current, previous)
+    }
+
+    private fun load(packageName: String): MutableList<PerformanceBaseline> =
+        db.getString(packageName, null)?.let {
+            try {
+                gson.fromJson<MutableList<PerformanceBaseline>>(it, listType)
+            } catch (e: RuntimeException) {
+                null
+            }
+        } ?: mutableListOf()
+
+    private fun save(packageName: String, baselines: List<PerformanceBaseline>) {
+        db.edit().putString(packageName, gson.toJson(baselines)).apply()
+    }
+
+    companion object {
+        private const val PREFS_NAME = "performance_baselines"
+        private const val MAX_BASELINES = 6
+        private const val MIN_SESSION_MS = 60_000L
+        private const val MIN_FPS_SAMPLES = 30
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.data
+
+import android.util.Log
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Append-only log of [SessionReport]s stored as fixed-size binary records
+ * in a memory-mapped file, so appending a record is a handful of memory
+ * writes and reading any record is a direct offset lookup.
+ *
+ * Layout: a [HEADER_SIZE] byte header (magic, version, record size and the
+ * number of committed records) followed by [RECORD_SIZE] byte records.
+ * A record only becomes visible once the header count has been bumped.
+ */
+class SessionLog(private val file: File) {
+
+    private var channel: FileChannel? = null
+    private var buffer: MappedByteBuffer? = null
+
+    @get:Synchronized
+    val size: Int
+        get() = open()?.getInt(HEADER_COUNT) ?: 0
+
+    @Synchronized
+    fun append(report: SessionReport) {
+        val count = open()?.getInt(HEADER_COUNT) ?: return
+        val map = ensureCapacity(count + 1) ?: return
+        val base = HEADER_SIZE + count * RECORD_SIZE
+        for (i in 0 until RECORD_SIZE) map.put(base + i, 0)
+
+        map.putLong(base + OFFSET_START_TIME, report.startTime)
+        map.putLong(base + OFFSET_DURATION, report.duration)
+        map.putLong(base + OFFSET_VERSION_CODE, report.versionCode)
+        map.putInt(base + OFFSET_PACKAGE_HASH, report.packageName.hashCode())
+        map.putInt(base + OFFSET_GAME_MODE, report.gameMode)
+        map.putInt(base + OFFSET_BATTERY_START, report.batteryStartLevel)
+        map.putInt(base + OFFSET_BATTERY_END, report.batteryEndLevel)
+        map.putInt(base + OFFSET_MEMORY_LOW_WATER, report.memoryLowWaterMiB)
+        map.putInt(base + OFFSET_FPS_SAMPLES, report.fpsSamples)
+        map.putFloat(base + OFFSET_FPS_AVERAGE, report.fpsAverage)
+        map.putFloat(base + OFFSET_FPS_MIN, report.fpsMin)
+        map.putFloat(base + OFFSET_FPS_MAX, report.fpsMax)
+        map.putFloat(base + OFFSET_FPS_LOW_1, report.fpsLow1Percent)
+        map.putFloat(base + OFFSET_FPS_LOW_01, report.fpsLow01Percent)
+        map.putFloat(base + OFFSET_FPS_VARIANCE, report.fpsVariance)
+        for (i in 0 until SessionReport.FPS_BUCKETS) {
+            map.putInt(base + OFFSET_FPS_HISTOGRAM + i * 4, report.fpsHistogram.getOrElse(i) { 0 })
+        }
+        val name = report.packageName.toByteArray(Charsets.UTF_8)
+        val length = name.size.coerceAtMost(MAX_PACKAGE_BYTES)
+        map.put(base + OFFSET_PACKAGE_LENGTH, length.toByte())
+        for (i in 0 until length) map.put(base + OFFSET_PACKAGE + i, name[i])
+
+        map.putFloat(base + OFFSET_THERMAL_START, report.thermalHeadroomStart)
+        map.putFloat(base + OFFSET_THERMAL_PEAK, report.thermalHeadroomPeak)
+        map.putInt(base + OFFSET_THERMAL_STATUS_PEAK, report.thermalStatusPeak)
+        map.put(base + OFFSET_THERMAL_MITIGATED, if (report.thermalMitigated) 1 else 0)
+        map.putFloat(base + OFFSET_DRAIN_MAH, report.drainMah)
+        map.putFloat(base + OFFSET_DRAIN_ENERGY, report.drainEnergyMwh)
+        map.putFloat(base + OFFSET_AVERAGE_POWER, report.averagePowerMw)
+        for (i in 0 until SessionReport.MODE_SLOTS) {
+            map.putFloat(base + OFFSET_MODE_DRAIN + i * 4, report.modeDrainMah.getOrElse(i) { 0f })
+            map.putInt(base + OFFSET_MODE_DURATION + i * 4, report.modeDurationSec.getOrElse(i) { 0 })
+        }
+        for (i in 0 until StutterEvent.TYPES) {
+            map.putInt(base + OFFSET_STUTTER_COUNTS + i * 4, report.stutterCounts.getOrElse(i) { 0 })
+        }
+        map.putInt(base + OFFSET_STUTTER_DURATION, report.stutterDurationMs)
+        map.putInt(base + OFFSET_START_LATENCY, report.startLatencyMs)
+        for (i in 0 until SessionReport.STUTTER_SLOTS) {
+            map.putLong(base + OFFSET_STUTTER_EVENTS + i * 8, report.stutterEvents.getOrElse(i) { 0L })
+        }
+
+        // commit
+        map.putInt(HEADER_COUNT, count + 1)
+    }
+
+    @Synchronized
+    fun read(index: Int): SessionReport? {
+        val map = open() ?: return null
+        if (index < 0 || index >= map.getInt(HEADER_COUNT)) return null
+        val base = HEADER_SIZE + index * RECORD_SIZE
+        val length = map.get(base + OFFSET_PACKAGE_LENGTH).toInt() and 0xff
+        val name = ByteArray(length) { map.get(base + OFFSET_PACKAGE + it) }
+        return SessionReport(
+            packageName = String(name, Charsets.UTF_8),
+            versionCode = map.getLong(base + OFFSET_VERSION_CODE),
+            startTime = map.getLong(base + OFFSET_START_TIME),
+            duration = map.getLong(base + OFFSET_DURATION),
+            gameMode = map.getInt(base + OFFSET_GAME_MODE),
+            batteryStartLevel = map.getInt(base + OFFSET_BATTERY_START),
+            batteryEndLevel = map.getInt(base + OFFSET_BATTERY_END),
+            memoryLowWaterMiB = map.getInt(base + OFFSET_MEMORY_LOW_WATER),
+            fpsSamples = map.getInt(base + OFFSET_FPS_SAMPLES),
+            fpsAverage = map.getFloat(base + OFFSET_FPS_AVERAGE),
+            fpsMin = map.getFloat(base + OFFSET_FPS_MIN),
+            fpsMax = map.getFloat(base + OFFSET_FPS_MAX),
+            fpsLow1Percent = map.getFloat(base + OFFSET_FPS_LOW_1),
+            fpsLow01Percent = map.getFloat(base + OFFSET_FPS_LOW_01),
+            fpsVariance = map.getFloat(base + OFFSET_FPS_VARIANCE),
+            fpsHistogram = IntArray(SessionReport.FPS_BUCKETS) {
+                map.getInt(base + OFFSET_FPS_HISTOGRAM + it * 4)
+            },
+            thermalHeadroomStart = map.getFloat(base + OFFSET_THERMAL_START),
+            thermalHeadroomPeak = map.getFloat(base + OFFSET_THERMAL_PEAK),
+            thermalStatusPeak = map.getInt(base + OFFSET_THERMAL_STATUS_PEAK),
+            thermalMitigated = map.get(base + OFFSET_THERMAL_MITIGATED).toInt() != 0,
+            drainMah = map.getFloat(base + OFFSET_DRAIN_MAH),
+            drainEnergyMwh = map.getFloat(base + OFFSET_DRAIN_ENERGY),
+            averagePowerMw = map.getFloat(base + OFFSET_AVERAGE_POWER),
+            modeDrainMah = FloatArray(SessionReport.MODE_SLOTS) {
+                map.getFloat(base + OFFSET_MODE_DRAIN + it * 4)
+            },
+            modeDurationSec = IntArray(SessionReport.MODE_SLOTS) {
+                map.getInt(base + OFFSET_MODE_DURATION + it * 4)
+            },
+            stutterCounts = IntArray(StutterEvent.TYPES) {
+                map.getInt(base + OFFSET_STUTTER_COUNTS + it * 4)
+            },
+            stutterDurationMs = map.getInt(base + OFFSET_STUTTER_DURATION),
+            startLatencyMs = map.getInt(base + OFFSET_START_LATENCY),
+            stutterEvents = LongArray(SessionReport.STUTTER_SLOTS) {
+                map.getLong(base + OFFSET_STUTTER_EVENTS + it * 8)
+            },
+        )
+    }
+
+    /** Start time of the record at [index] without decoding the rest of it, -1 if out of range */
+    @Synchronized
+    fun startTimeAt(index: Int): Long {
+        val map = open() ?: return -1L
+        if (index < 0 || index >= map.getInt(HEADER_COUNT)) return -1L
+        return map.getLong(HEADER_SIZE + index * RECORD_SIZE + OFFSET_START_TIME)
+    }
+
+    /**
+     * Index of the first record that started at or after [time]. Records are
+     * appended as sessions end, so start times are ascending and this is a
+     * binary search over the mapped file.
+     */
+    @Synchronized
+    fun firstIndexSince(time: Long): Int {
+        var low = 0
+        var high = size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (startTimeAt(mid) < time) low = mid + 1 else high = mid
+        }
+        return low
+    }
+
+    @Synchronized
+    fun close() {
+        try {
+            channel?.close()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to close session log", e)
+        }
+        channel = null
+        buffer = null
+    }
+
+    private fun open(): MappedByteBuffer? {
+        buffer?.let { return it }
+        return try {
+            val ch = RandomAccessFile(file, "rw").channel
+            channel = ch
+            val fresh = ch.size() < HEADER_SIZE
+            map(ch, if (fresh) capacityFor(0) else ch.size()).also {
+                if (fresh) {
+                    it.putInt(HEADER_MAGIC, MAGIC)
+                    it.putInt(HEADER_VERSION, VERSION)
+                    it.putInt(HEADER_RECORD_SIZE, RECORD_SIZE)
+                    it.putInt(HEADER_COUNT, 0)
+                } else if (it.getInt(HEADER_MAGIC) != MAGIC ||
+                    it.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                    Log.w(TAG, "Unknown session log format, starting over")
+                    it.putInt(HEADER_MAGIC, MAGIC)
+                    it.putInt(HEADER_VERSION, VERSION)
+                    it.putInt(HEADER_RECORD_SIZE, RECORD_SIZE)
+                    it.putInt(HEADER_COUNT, 0)
+                }
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to open session log", e)
+            close()
+            null
+        }
+    }
+
+    private fun ensureCapacity(records: Int): MappedByteBuffer? {
+        val map = buffer ?: return null
+        val needed = HEADER_SIZE.toLong() + records.toLong() * RECORD_SIZE
+        if (needed <= map.capacity()) return map
+        return try {
+            map(channel ?: return null, capacityFor(records))
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to grow session log", e)
+            null
+        }
+    }
+
+    // mapping past the end of the file grows it, so this also allocates space
+    private fun map(ch: FileChannel, size: Long) =
+        ch.map(FileChannel.MapMode.READ_WRITE, 0, size).apply {
+            order(ByteOrder.LITTLE_ENDIAN)
+            buffer = this
+        }
+
+    private fun capacityFor(records: Int): Long {
+        val chunks = records / RECORDS_PER_CHUNK + 1
+        return HEADER_SIZE.toLong() + chunks.toLong() * RECORDS_PER_CHUNK * RECORD_SIZE
+    }
+
+    companion object {
+        private const val TAG = "SessionLog"
+        const val FILE_NAME = "session_reports.bin"
+
+        private const val MAGIC = 0x47535352 // GSSR
+        private const val VERSION = 1
+        private const val RECORDS_PER_CHUNK = 64
+
+        const val HEADER_SIZE = 64
+        private const val HEADER_MAGIC = 0
+        private const val HEADER_VERSION = 4
+        private const val HEADER_RECORD_SIZE = 8
+        private const val HEADER_COUNT = 12
+
+        // Records are padded to leave room for new fields without
+        // invalidating existing logs.
+        const val RECORD_SIZE = 512
+        private const val OFFSET_START_TIME = 0
+        private const val OFFSET_DURATION = 8
+        private const val OFFSET_VERSION_CODE = 16
+        private const val OFFSET_PACKAGE_HASH = 24
+        private const val OFFSET_GAME_MODE = 28
+        private const val OFFSET_BATTERY_START = 32
+        private const val OFFSET_BATTERY_END = 36
+        private const val OFFSET_MEMORY_LOW_WATER = 40
+        private const val OFFSET_FPS_SAMPLES = 44
+        private const val OFFSET_FPS_AVERAGE = 48
+        private const val OFFSET_FPS_MIN = 52
+        private const val OFFSET_FPS_MAX = 56
+        private const val OFFSET_FPS_LOW_1 = 60
+        private const val OFFSET_FPS_LOW_01 = 64
+        private const val OFFSET_FPS_VARIANCE = 68
+        private const val OFFSET_FPS_HISTOGRAM = 72
+        private const val OFFSET_PACKAGE_LENGTH = 136
+        private const val OFFSET_PACKAGE = 137
+        private const val MAX_PACKAGE_BYTES = 255
+        // fields below were added later, older records read them as zero
+        private const val OFFSET_THERMAL_START = 392
+        private const val OFFSET_THERMAL_PEAK = 396
+        private const val OFFSET_THERMAL_STATUS_PEAK = 400
+        private const val OFFSET_THERMAL_MITIGATED = 404
+        private const val OFFSET_DRAIN_MAH = 408
+        private const val OFFSET_DRAIN_ENERGY = 412
+        private const val OFFSET_AVERAGE_POWER = 416
+        private const val OFFSET_MODE_DRAIN = 420
+        private const val OFFSET_MODE_DURATION = 436
+        private const val OFFSET_STUTTER_COUNTS = 452
+        private const val OFFSET_STUTTER_DURATION = 464
+        private const val OFFSET_START_LATENCY = 468
+        private const val OFFSET_STUTTER_EVENTS = 472
+    }
+}
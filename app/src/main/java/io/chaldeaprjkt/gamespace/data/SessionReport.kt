@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.data
+
+/**
+ * Everything GameSpace observed during a single game session
+ */
+data class SessionReport(
+    val packageName: String,
+    val versionCode: Long,
+    val startTime: Long,
+    val duration: Long,
+    val gameMode: Int,
+    val batteryStartLevel: Int,
+    val batteryEndLevel: Int,
+    val memoryLowWaterMiB: Int,
+    val fpsSamples: Int,
+    val fpsAverage: Float,
+    val fpsMin: Float,
+    val fpsMax: Float,
+    val fpsLow1Percent: Float,
+    val fpsLow01Percent: Float,
+    val fpsVariance: Float,
+    /** Number of FPS reports per [FPS_BUCKET_WIDTH] wide bucket, the last one is open-ended */
+    val fpsHistogram: IntArray,
+    /** Thermal headroom at the first and the hottest reading, NaN when unsupported */
+    val thermalHeadroomStart: Float,
+    val thermalHeadroomPeak: Float,
+    val thermalStatusPeak: Int,
+    /** Whether the game was moved to battery mode to avoid throttling */
+    val thermalMitigated: Boolean,
+    val drainMah: Float,
+    val drainEnergyMwh: Float,
+    val averagePowerMw: Float,
+    /** Charge drawn and time spent per game mode, indexed by the GameManager mode constant */
+    val modeDrainMah: FloatArray,
+    val modeDurationSec: IntArray,
+    /** Number of stutters per [StutterEvent] type */
+    val stutterCounts: IntArray,
+    val stutterDurationMs: Int,
+    /** The most severe stutters, see [StutterEvent.pack] */
+    val stutterEvents: LongArray,
+    /** Time from the session start until the game's first FPS report */
+    val startLatencyMs: Int,
+    /** Game Mode intervention of the session, only kept in memory, not in [SessionLog] */
+    val configKey: String = "",
+) {
+    val worstStutters: List<StutterEvent>
+        get() = stutterEvents.mapNotNull { StutterEvent.unpack(it) }
+
+    val batteryDrop: Int
+        get() = batteryStartLevel - batteryEndLevel
+
+    val drainPerHourMah: Float
+        get() = if (duration > 0) drainMah * 3_600_000f / duration else 0f
+
+    fun drainPerHourMah(mode: Int): Float {
+        val seconds = modeDurationSec.getOrElse(mode) { 0 }
+        return if (seconds > 0) modeDrainMah[mode] * 3600f / seconds else 0f
+    }
+
+    companion object {
+        const val FPS_BUCKETS = 16
+        const val FPS_BUCKET_WIDTH = 10
+        /** GAME_MODE_UNSUPPORTED up to GAME_MODE_BATTERY */
+        const val MODE_SLOTS = 4
+        const val STUTTER_SLOTS = 5
+
+        fun fpsBucketOf(fps: Float) = (fps.toInt() / FPS_BUCKET_WIDTH).coerceIn(0, FPS_BUCKETS - 1)
+    }
+}
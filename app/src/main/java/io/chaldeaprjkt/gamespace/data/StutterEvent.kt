@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.data
+
+/**
+ * A stutter observed during a session, along with what else was going on
+ * at the time so it can be correlated afterwards.
+ */
+data class StutterEvent(
+    val type: Int,
+    /** Start of the event relative to the start of the session */
+    val offsetMs: Long,
+    val durationMs: Long,
+    /** 1 (noticeable) to [SEVERITY_MAX] (severe) */
+    val severity: Int,
+    /** PowerManager thermal status when the event ended */
+    val thermalStatus: Int,
+    val flags: Int,
+) {
+
+    /**
+     * Packs the event into 64 bits: offset in seconds (24), duration in
+     * tenths of a second (20), type (4), severity (4), thermal status (4)
+     * and flags (8). Zero never describes a valid event.
+     */
+    fun pack(): Long {
+        val offset = (offsetMs / 1000).coerceIn(0, 0xffffff)
+        val duration = ((durationMs + 99) / 100).coerceIn(1, 0xfffff)
+        return (offset shl 40) or
+                (duration shl 20) or
+                ((type.toLong() and 0xf) shl 16) or
+                ((severity.toLong() and 0xf) shl 12) or
+                ((thermalStatus.toLong() and 0xf) shl 8) or
+                (flags.toLong() and 0xff)
+    }
+
+    companion object {
+        const val TYPE_FPS_DROP = 0
+        const val TYPE_OSCILLATION = 1
+        const val TYPE_FREEZE = 2
+        const val TYPES = 3
+
+        const val SEVERITY_MAX = 3
+
+        /** A notification was shown shortly before or during the event */
+        const val FLAG_NOTIFICATION = 1
+        /** GameSpace's own overlays were running in degraded mode */
+        const val FLAG_OVERLAY_DEGRADED = 1 shl 1
+        /** The panel was open */
+        const val FLAG_PANEL_OPEN = 1 shl 2
+
+        fun unpack(packed: Long): StutterEvent? {
+            if (packed == 0L) return null
+            return StutterEvent(
+                type = ((packed ushr 16) and 0xf).toInt(),
+                offsetMs = (packed ushr 40) * 1000,
+                durationMs = ((packed ushr 20) and 0xfffff) * 100,
+                severity = ((packed ushr 12) and 0xf).toInt(),
+                thermalStatus = ((packed ushr 8) and 0xf).toInt(),
+                flags = (packed and 0xff).toInt(),
+            )
+        }
+    }
+}
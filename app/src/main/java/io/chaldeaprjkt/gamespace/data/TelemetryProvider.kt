@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.data
+
+import android.content.ContentProvider
+import android.content.ContentResolver
+import android.content.ContentValues
+import android.content.UriMatcher
+import android.database.AbstractCursor
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.net.Uri
+import android.os.Bundle
+import android.os.CancellationSignal
+import io.chaldeaprjkt.gamespace.utils.di.ProviderEntryPoint
+import io.chaldeaprjkt.gamespace.utils.entryPointOf
+
+/**
+ * Read-only export of the [SessionLog] and the live frame statistics, e.g.
+ *
+ *   adb shell content query --uri content://io.chaldeaprjkt.gamespace.telemetry/sessions?since=<ms>&limit=100
+ *   adb shell content query --uri content://io.chaldeaprjkt.gamespace.telemetry/frames
+ *
+ * Session rows are decoded from the log one at a time as the cursor moves,
+ * so exporting the whole history never holds more than a single record.
+ */
+class TelemetryProvider : ContentProvider() {
+
+    private val entryPoint by lazy { context!!.entryPointOf<ProviderEntryPoint>() }
+
+    override fun onCreate() = true
+
+    override fun query(
+        uri: Uri,
+        projection: Array<out String>?,
+        queryArgs: Bundle?,
+        cancellationSignal: CancellationSignal?,
+    ): Cursor? = when (matcher.match(uri)) {
+        MATCH_SESSIONS -> querySessions(uri, projection, queryArgs)
+        MATCH_SESSION_ID -> querySession(uri, projection)
+        MATCH_FRAMES -> queryFrames(projection)
+        else -> null
+    }
+
+    override fun query(
+        uri: Uri,
+        projection: Array<out String>?,
+        selection: String?,
+        selectionArgs: Array<out String>?,
+        sortOrder: String?,
+    ): Cursor? = query(uri, projection, null as Bundle?, null)
+
+    override fun getType(uri: Uri): String? = when (matcher.match(uri)) {
+        MATCH_SESSIONS -> "${ContentResolver.CURSOR_DIR_BASE_TYPE}/vnd.$AUTHORITY.session"
+        MATCH_SESSION_ID -> "${ContentResolver.CURSOR_ITEM_BASE_TYPE}/vnd.$AUTHORITY.session"
+        MATCH_FRAMES -> "${ContentResolver.CURSOR_ITEM_BASE_TYPE}/vnd.$AUTHORITY.frames"
+        else -> null
+    }
+
+    override fun insert(uri: Uri, values: ContentValues?): Uri? =
+        throw UnsupportedOperationException("$uri is read-only")
+
+    override fun update(
+        uri: Uri,
+        values: ContentValues?,
+        selection: String?,
+        selectionArgs: Array<out String>?,
+    ): Int = throw UnsupportedOperationException("$uri is read-only")
+
+    override fun delete(uri: Uri, selection: String?, selectionArgs: Array<out String>?): Int =
+        throw UnsupportedOperationException("$uri is read-only")
+
+    private fun querySessions(uri: Uri, projection: Array<out String>?, queryArgs: Bundle?): Cursor {
+        val log = entryPoint.sessionLog()
+        val since = uri.getQueryParameter(PARAM_SINCE)?.toLongOrNull() ?: 0L
+        val offset = intArg(queryArgs, ContentResolver.QUERY_ARG_OFFSET)
+            ?: uri.getQueryParameter(PARAM_OFFSET)?.toIntOrNull() ?: 0
+        val limit = intArg(queryArgs, ContentResolver.QUERY_ARG_LIMIT)
+            ?: uri.getQueryParameter(PARAM_LIMIT)?.toIntOrNull() ?: Int.MAX_VALUE
+
+        val first = (log.firstIndexSince(since) + offset.coerceAtLeast(0)).coerceAtMost(log.size)
+        val count = (log.size - first).coerceIn(0, limit.coerceAtLeast(0))
+        return SessionCursor(log, first, count, columnsOf(projection)).apply {
+            extras = Bundle().apply {
+                putStringArray(ContentResolver.EXTRA_HONORED_ARGS, arrayOf(
+                    ContentResolver.QUERY_ARG_OFFSET, ContentResolver.QUERY_ARG_LIMIT))
+                putInt(ContentResolver.EXTRA_TOTAL_COUNT, log.size - log.firstIndexSince(since))
+            }
+        }
+    }
+
+    private fun querySession(uri: Uri, projection: Array<out String>?): Cursor {
+        val log = entryPoint.sessionLog()
+        val index = uri.lastPathSegment?.toIntOrNull() ?: -1
+        val exists = index >= 0 && index < log.size
+        return SessionCursor(log, index, if (exists) 1 else 0, columnsOf(projection))
+    }
+
+    private fun queryFrames(projection: Array<out String>?): Cursor {
+        val columns = projection?.filter { it in FRAME_COLUMNS }?.toTypedArray() ?: FRAME_COLUMNS
+        // no row until the game has reported, rather than zeros that look like data
+        val stats = entryPoint.frameRateMonitor().published ?: return MatrixCursor(columns, 0)
+        val snapshot = stats.window
+        return MatrixCursor(columns, 1).apply {
+            addRow(columns.map {
+                when (it) {
+                    FRAME_LATEST -> stats.latest
+                    FRAME_TOTAL -> stats.total
+                    COLUMN_FPS_SAMPLES -> snapshot.samples
+                    COLUMN_FPS_AVERAGE -> snapshot.average
+                    COLUMN_FPS_MIN -> snapshot.min
+                    COLUMN_FPS_MAX -> snapshot.max
+                    COLUMN_FPS_LOW_1 -> snapshot.low1Percent
+                    COLUMN_FPS_LOW_01 -> snapshot.low01Percent
+                    COLUMN_FPS_VARIANCE -> snapshot.variance
+                    else -> null
+                }
+            })
+        }
+    }
+
+    private fun intArg(queryArgs: Bundle?, key: String) =
+        if (queryArgs?.containsKey(key) == true) queryArgs.getInt(key) else null
+
+    private fun columnsOf(projection: Array<out String>?): IntArray {
+        if (projection == null) return IntArray(SESSION_COLUMNS.size) { it }
+        return projection.map { SESSION_COLUMNS.indexOf(it) }.filter { it >= 0 }.toIntArray()
+    }
+
+    /**
+     * Rows [first] until [first] + [count] of the log. Only the record under
+     * the cursor is decoded; [columns] maps cursor columns to [SESSION_COLUMNS].
+     */
+    private class SessionCursor(
+        private val log: SessionLog,
+        private val first: Int,
+        private val count: Int,
+        private val columns: IntArray,
+    ) : AbstractCursor() {
+
+        private var report: SessionReport? = null
+        private val names = Array(columns.size) { SESSION_COLUMNS[columns[it]] }
+
+        override fun getCount() = count
+
+        override fun getColumnNames() = names
+
+        override fun onMove(oldPosition: Int, newPosition: Int): Boolean {
+            report = log.read(first + newPosition)
+            return report != null
+        }
+
+        override fun getType(column: Int) = when (val value = valueOf(column)) {
+            null -> Cursor.FIELD_TYPE_NULL
+            is String -> Cursor.FIELD_TYPE_STRING
+            is Float, is Double -> Cursor.FIELD_TYPE_FLOAT
+            else -> Cursor.FIELD_TYPE_INTEGER
+        }
+
+        override fun getString(column: Int) = valueOf(column)?.toString()
+
+        override fun getShort(column: Int) = number(column).toShort()
+
+        override fun getInt(column: Int) = number(column).toInt()
+
+        override fun getLong(column: Int) = number(column).toLong()
+
+        override fun getFloat(column: Int) = number(column).toFloat()
+
+        override fun getDouble(column: Int) = number(column).toDouble()
+
+        override fun isNull(column: Int) = valueOf(column) == null
+
+        private fun number(column: Int) = valueOf(column) as? Number ?: 0
+
+        private fun valueOf(column: Int): Any? {
+            val r = report ?: return null
+            return when (columns[column]) {
+                0 -> first + position
+                1 -> r.packageName
+                2 -> r.versionCode
+                3 -> r.startTime
+                4 -> r.duration
+                5 -> r.gameMode
+                6 -> r.batteryStartLevel
+                7 -> r.batteryEndLevel
+                8 -> r.memoryLowWaterMiB
+                9 -> r.fpsSamples
+                10 -> r.fpsAverage
+                11 -> r.fpsMin
+                12 -> r.fpsMax
+                13 -> r.fpsLow1Percent
+                14 -> r.fpsLow01Percent
+                15 -> r.fpsVariance
+                16 -> r.fpsHistogram.joinToString(",")
+                17 -> r.drainMah
+                18 -> r.drainEnergyMwh
+                19 -> r.averagePowerMw
+                20 -> r.thermalHeadroomStart.takeUnless { it.isNaN() }
+                21 -> r.thermalHeadroomPeak.takeUnless { it.isNaN() }
+                22 -> r.thermalStatusPeak
+                23 -> if (r.thermalMitigated) 1 else 0
+                24 -> r.stutterCounts[StutterEvent.TYPE_FPS_DROP]
+                25 -> r.stutterCounts[StutterEvent.TYPE_OSCILLATION]
+                26 -> r.stutterCounts[StutterEvent.TYPE_FREEZE]
+                27 -> r.stutterDurationMs
+                28 -> r.startLatencyMs
+                else -> null
+            }
+        }
+    }
+
+    companion object {
+        const val AUTHORITY = "io.chaldeaprjkt.gamespace.telemetry"
+
+        const val PARAM_SINCE = "since"
+        const val PARAM_OFFSET = "offset"
+        const val PARAM_LIMIT = "limit"
+
+        private const val COLUMN_FPS_SAMPLES = "fps_samples"
+        private const val COLUMN_FPS_AVERAGE = "fps_avg"
+        private const val COLUMN_FPS_MIN = "fps_min"
+        private const val COLUMN_FPS_MAX = "fps_max"
+        private const val COLUMN_FPS_LOW_1 = "fps_low_1"
+        private const val COLUMN_FPS_LOW_01 = "fps_low_01"
+        private const val COLUMN_FPS_VARIANCE = "fps_variance"
+        private const val FRAME_LATEST = "fps_latest"
+        private const val FRAME_TOTAL = "reports_total"
+
+        // order matches SessionCursor.valueOf
+        private val SESSION_COLUMNS = arrayOf(
+            "_id", "package", "version_code", "start_time", "duration", "game_mode",
+            "battery_start", "battery_end", "memory_low_water_mib", COLUMN_FPS_SAMPLES,
+            COLUMN_FPS_AVERAGE, COLUMN_FPS_MIN, COLUMN_FPS_MAX, COLUMN_FPS_LOW_1,
+            COLUMN_FPS_LOW_01, COLUMN_FPS_VARIANCE, "fps_histogram", "drain_mah",
+            "energy_mwh", "avg_power_mw", "thermal_headroom_start", "thermal_headroom_peak",
+            "thermal_status_peak", "thermal_mitigated", "stutter_drops", "stutter_oscillations",
+            "stutter_freezes", "stutter_duration_ms", "start_latency_ms",
+        )
+
+        private val FRAME_COLUMNS = arrayOf(
+            FRAME_LATEST, FRAME_TOTAL, COLUMN_FPS_SAMPLES, COLUMN_FPS_AVERAGE, COLUMN_FPS_MIN,
+            COLUMN_FPS_MAX, COLUMN_FPS_LOW_1, COLUMN_FPS_LOW_01, COLUMN_FPS_VARIANCE,
+        )
+
+        private const val MATCH_SESSIONS = 1
+        private const val MATCH_SESSION_ID = 2
+        private const val MATCH_FRAMES = 3
+
+        private val matcher = UriMatcher(UriMatcher.NO_MATCH).apply {
+            addURI(AUTHORITY, "sessions", MATCH_SESSIONS)
+            addURI(AUTHORITY, "sessions/#", MATCH_SESSION_ID)
+            addURI(AUTHORITY, "frames", MATCH_FRAMES)
+        }
+    }
+}
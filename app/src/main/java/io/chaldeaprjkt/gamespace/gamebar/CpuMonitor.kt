@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import io.chaldeaprjkt.gamespace.utils.SystemMetricsReader
+
+/**
+ * Per-core load and per-cluster frequency, derived from /proc/stat deltas
+ * between two telemetry ticks. It only rides the shared sampler while
+ * someone listens, so a hidden panel costs nothing.
+ */
+class CpuMonitor(
+    private val metricsReader: SystemMetricsReader,
+    private val telemetrySampler: TelemetrySampler,
+) {
+
+    fun interface Listener {
+        fun onCpuSample(monitor: CpuMonitor)
+    }
+
+    val coreCount = metricsReader.coreCount
+    val clusterFirstCores: IntArray = metricsReader.clusterFirstCores
+
+    /** Load of every core in percent over the last tick, -1 while it's offline */
+    val coreLoad = IntArray(coreCount) { -1 }
+
+    /** Current frequency of every cluster in MHz, -1 when it can't be read */
+    val clusterFreqMHz = IntArray(clusterFirstCores.size) { -1 }
+
+    var totalLoad = 0
+        private set
+
+    /** Load of the busiest core, a single saturated thread shows up here first */
+    var peakLoad = 0
+        private set
+
+    var hasSample = false
+        private set
+
+    private var previous = SystemMetricsReader.CpuTimes(coreCount)
+    private var current = SystemMetricsReader.CpuTimes(coreCount)
+    private var hasPrevious = false
+
+    private val listeners = mutableListOf<Listener>()
+
+    private val sampleListener = TelemetrySampler.Listener { update() }
+
+    fun addListener(listener: Listener) {
+        if (listeners.contains(listener)) return
+        listeners.add(listener)
+        if (listeners.size == 1) {
+            hasPrevious = false
+            telemetrySampler.subscribe(sampleListener, true)
+        } else if (hasSample) {
+            listener.onCpuSample(this)
+        }
+    }
+
+    fun removeListener(listener: Listener) {
+        if (listeners.remove(listener) && listeners.isEmpty()) {
+            telemetrySampler.unsubscribe(sampleListener)
+            hasSample = false
+        }
+    }
+
+    private fun update() {
+        if (!metricsReader.readCpuTimes(current)) return
+        if (hasPrevious) {
+            var peak = 0
+            for (core in 0 until coreCount) {
+                val load = loadOf(core)
+                coreLoad[core] = load
+                if (load > peak) peak = load
+            }
+            totalLoad = loadOf(coreCount).coerceAtLeast(0)
+            peakLoad = peak
+            for (i in clusterFirstCores.indices) {
+                val khz = metricsReader.readCpuFreqKHz(clusterFirstCores[i])
+                clusterFreqMHz[i] = if (khz < 0) -1 else (khz / 1000).toInt()
+            }
+            hasSample = true
+        }
+        val swap = previous
+        previous = current
+        current = swap
+        hasPrevious = true
+
+        if (hasSample) {
+            for (i in listeners.indices.reversed()) {
+                listeners[i].onCpuSample(this)
+            }
+        }
+    }
+
+    private fun loadOf(index: Int): Int {
+        if (!current.online[index] || !previous.online[index]) return -1
+        val total = current.total[index] - previous.total[index]
+        val idle = current.idle[index] - previous.idle[index]
+        if (total <= 0) return 0
+        return ((total - idle) * 100 / total).toInt().coerceIn(0, 100)
+    }
+}
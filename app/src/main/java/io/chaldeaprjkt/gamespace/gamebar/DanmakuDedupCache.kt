@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+/**
+ * Remembers which notifications were already shown as danmaku. Entries are
+ * 64-bit keys, the notification key's hash in the upper half and a hash of
+ * the displayed content in the lower one, and expire after [ttlMs]. When
+ * full, the least recently seen entry is replaced, so a burst only pushes
+ * out the oldest entries instead of forgetting everything at once.
+ *
+ * The cache is small enough that a linear scan over its arrays beats any
+ * hashing scheme, and it never allocates after construction.
+ */
+class DanmakuDedupCache(
+    val capacity: Int = DEFAULT_CAPACITY,
+    private val ttlMs: Long = DEFAULT_TTL_MS,
+) {
+
+    private val keys = LongArray(capacity)
+    private val seenAt = LongArray(capacity)
+
+    var size = 0
+        private set
+
+    /**
+     * Records [key] as seen at [now]. Returns false if it was already seen
+     * within the TTL, meaning the notification is a duplicate.
+     */
+    fun add(key: Long, now: Long): Boolean {
+        var oldest = 0
+        for (i in 0 until size) {
+            if (keys[i] == key) {
+                val fresh = now - seenAt[i] <= ttlMs
+                seenAt[i] = now
+                return !fresh
+            }
+            if (seenAt[i] < seenAt[oldest]) oldest = i
+        }
+        val slot = if (size < capacity) size++ else oldest
+        keys[slot] = key
+        seenAt[slot] = now
+        return true
+    }
+
+    fun clear() {
+        size = 0
+    }
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 128
+        private const val DEFAULT_TTL_MS = 10 * 60_000L
+
+        fun keyOf(notificationKey: String, contentHash: Int) =
+            (notificationKey.hashCode().toLong() shl 32) or (contentHash.toLong() and 0xffffffffL)
+
+        // combines the fields directly instead of hashing the built display string
+        fun contentHashOf(title: String?, text: String?, time: Long): Int {
+            var hash = title?.hashCode() ?: 0
+            hash = 31 * hash + (text?.hashCode() ?: 0)
+            return 31 * hash + time.hashCode()
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.util.Log
+
+/**
+ * User defined danmaku filter, compiled from one rule per line:
+ *
+ *   <package or *> [deny] [+keyword]... [-keyword]... [category=a,b] [importance>=n]
+ *
+ * The rule of the notification's package applies, or the `*` rule when it
+ * has none, and everything is shown when neither exists. A notification
+ * passes when its rule doesn't deny, its category and importance qualify,
+ * none of the `-` keywords appear and, if any are given, one of the `+`
+ * keywords does. Keywords are case-insensitive, use `_` for a space.
+ *
+ * Each rule compiles its keywords into a single Aho-Corasick automaton, so
+ * checking a notification is one hash lookup plus one pass over its text,
+ * however long the rule list is.
+ */
+class DanmakuFilter private constructor(
+    private val rules: Map<String, Rule>,
+    private val fallback: Rule?,
+) {
+
+    val isEmpty: Boolean
+        get() = rules.isEmpty() && fallback == null
+
+    fun allows(
+        packageName: String,
+        category: String?,
+        importance: Int,
+        title: CharSequence?,
+        text: CharSequence?,
+    ): Boolean {
+        val rule = rules[packageName] ?: fallback ?: return true
+        if (rule.deny) return false
+        if (importance < rule.minImportance) return false
+        if (rule.categories != null && (category == null || category !in rule.categories)) return false
+        val matcher = rule.keywords ?: return true
+        var found = matcher.scan(title, 0)
+        if (found and KeywordMatcher.EXCLUDE == 0) found = matcher.scan(text, found)
+        if (found and KeywordMatcher.EXCLUDE != 0) return false
+        return !rule.requiresInclude || found and KeywordMatcher.INCLUDE != 0
+    }
+
+    private class Rule(
+        val deny: Boolean,
+        val minImportance: Int,
+        val categories: Set<String>?,
+        val keywords: KeywordMatcher?,
+        val requiresInclude: Boolean,
+    )
+
+    /**
+     * Aho-Corasick automaton over lowercased keywords, flattened into arrays.
+     * The edges of a state are sorted by char, [output] holds which kinds of
+     * keyword end in a state or any of its suffixes.
+     */
+    private class KeywordMatcher(
+        private val edgeStart: IntArray,
+        private val edgeChars: CharArray,
+        private val edgeTargets: IntArray,
+        private val fail: IntArray,
+        private val output: IntArray,
+    ) {
+
+        /** ORs the kinds of keyword found in [text] into [found] */
+        fun scan(text: CharSequence?, found: Int): Int {
+            if (text == null) return found
+            var result = found
+            var state = 0
+            for (i in text.indices) {
+                val c = Character.toLowerCase(text[i])
+                while (true) {
+                    val next = next(state, c)
+                    if (next >= 0) {
+                        state = next
+                        break
+                    }
+                    if (state == 0) break
+                    state = fail[state]
+                }
+                result = result or output[state]
+                if (result and EXCLUDE != 0) break
+            }
+            return result
+        }
+
+        private fun next(state: Int, c: Char): Int {
+            var low = edgeStart[state]
+            var high = edgeStart[state + 1] - 1
+            while (low <= high) {
+                val mid = (low + high) ushr 1
+                val midChar = edgeChars[mid]
+                when {
+                    midChar < c -> low = mid + 1
+                    midChar > c -> high = mid - 1
+                    else -> return edgeTargets[mid]
+                }
+            }
+            return -1
+        }
+
+        companion object {
+            const val INCLUDE = 1
+            const val EXCLUDE = 1 shl 1
+
+            fun build(include: List<String>, exclude: List<String>): KeywordMatcher {
+                val edges = mutableListOf(sortedMapOf<Char, Int>())
+                val outputs = mutableListOf(0)
+                fun add(keyword: String, kind: Int) {
+                    var state = 0
+                    for (c in keyword) {
+                        state = edges[state].getOrPut(c) {
+                            edges.add(sortedMapOf())
+                            outputs.add(0)
+                            edges.size - 1
+                        }
+                    }
+                    outputs[state] = outputs[state] or kind
+                }
+                include.forEach { add(it, INCLUDE) }
+                exclude.forEach { add(it, EXCLUDE) }
+
+                // fail links breadth first, so a suffix state is done before it is used
+                val fail = IntArray(edges.size)
+                val queue = ArrayDeque<Int>()
+                edges[0].values.forEach { queue.add(it) }
+                while (queue.isNotEmpty()) {
+                    val state = queue.removeFirst()
+                    for ((c, target) in edges[state]) {
+                        var f = fail[state]
+                        while (f != 0 && edges[f][c] == null) f = fail[f]
+                        fail[target] = edges[f][c]?.takeIf { it != target } ?: 0
+                        outputs[target] = outputs[target] or outputs[fail[target]]
+                        queue.add(target)
+                    }
+                }
+
+                val edgeStart = IntArray(edges.size + 1)
+                for (i in edges.indices) edgeStart[i + 1] = edgeStart[i] + edges[i].size
+                val edgeChars = CharArray(edgeStart.last())
+                val edgeTargets = IntArray(edgeStart.last())
+                edges.forEachIndexed { state, map ->
+                    var e = edgeStart[state]
+                    for ((c, target) in map) {
+                        edgeChars[e] = c
+                        edgeTargets[e++] = target
+                    }
+                }
+                return KeywordMatcher(edgeStart, edgeChars, edgeTargets, fail, outputs.toIntArray())
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "DanmakuFilter"
+        private const val ANY_PACKAGE = "*"
+
+        val EMPTY = DanmakuFilter(emptyMap(), null)
+
+        fun compile(source: String?): DanmakuFilter {
+            if (source.isNullOrBlank()) return EMPTY
+            val rules = mutableMapOf<String, Rule>()
+            var fallback: Rule? = null
+            source.lineSequence()
+                .map { it.substringBefore('#').trim() }
+                .filter { it.isNotEmpty() }
+                .forEach { line ->
+                    val tokens = line.split(' ', '\t').filter { it.isNotEmpty() }
+                    val rule = parseRule(tokens.drop(1)) ?: return@forEach
+                    if (tokens[0] == ANY_PACKAGE) fallback = rule else rules[tokens[0]] = rule
+                }
+            return DanmakuFilter(rules, fallback)
+        }
+
+        private fun parseRule(tokens: List<String>): Rule? {
+            var deny = false
+            var minImportance = 0
+            var categories: Set<String>? = null
+            val include = mutableListOf<String>()
+            val exclude = mutableListOf<String>()
+            for (token in tokens) {
+                when {
+                    token == "deny" -> deny = true
+                    token == "allow" -> deny = false
+                    token.length > 1 && token[0] == '+' -> include.add(keywordOf(token))
+                    token.length > 1 && token[0] == '-' -> exclude.add(keywordOf(token))
+                    token.startsWith("category=") ->
+                        categories = token.substringAfter('=').split(',').toSet()
+                    token.startsWith("importance>=") ->
+                        minImportance = token.substringAfter(">=").toIntOrNull() ?: run {
+                            Log.w(TAG, "Ignoring rule with bad importance: $token")
+                            return null
+                        }
+                    else -> {
+                        Log.w(TAG, "Ignoring rule with unknown token: $token")
+                        return null
+                    }
+                }
+            }
+            val keywords = if (include.isEmpty() && exclude.isEmpty()) null
+            else KeywordMatcher.build(include, exclude)
+            return Rule(deny, minImportance, categories, keywords, include.isNotEmpty())
+        }
+
+        private fun keywordOf(token: String) = token.substring(1).replace('_', ' ').lowercase()
+    }
+}
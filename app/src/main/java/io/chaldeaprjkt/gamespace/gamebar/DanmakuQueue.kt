@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.app.Notification
+
+/**
+ * Bounded queue of pending danmaku. Every app holds at most one slot: a new
+ * notification from an app that is already waiting replaces its text and
+ * bumps its count, so a chat burst collapses into a single entry. Entries
+ * are served by priority, then age, and when the queue is full the oldest
+ * entry of the lowest priority makes room. Entries whose latest notification
+ * waited longer than [maxAgeMs] are dropped instead of shown.
+ *
+ * The queue also enforces the display rate: at most [maxDisplays] entries
+ * leave it within any [rateWindowMs].
+ */
+class DanmakuQueue(
+    val capacity: Int = DEFAULT_CAPACITY,
+    private val maxAgeMs: Long = DEFAULT_MAX_AGE_MS,
+    private val maxDisplays: Int = DEFAULT_MAX_DISPLAYS,
+    private val rateWindowMs: Long = DEFAULT_RATE_WINDOW_MS,
+) {
+
+    /** Reusable holder for [poll] */
+    class Entry {
+        var packageName = ""
+        /** Display name of the app, resolved by whoever offered the notification */
+        var appLabel = ""
+        var text = ""
+        var priority = PRIORITY_NORMAL
+        /** Notifications coalesced into this entry, 1 when it wasn't coalesced */
+        var count = 0
+    }
+
+    private val packages = arrayOfNulls<String>(capacity)
+    private val labels = arrayOfNulls<String>(capacity)
+    private val texts = arrayOfNulls<String>(capacity)
+    private val priorities = IntArray(capacity)
+    private val postedAt = LongArray(capacity)
+    // newest notification of each entry, a burst stays fresh while it goes on
+    private val updatedAt = LongArray(capacity)
+    private val counts = IntArray(capacity)
+
+    // start times of the latest displays, oldest at displayHead
+    private val displayTimes = LongArray(maxDisplays)
+    private var displayHead = 0
+
+    var size = 0
+        private set
+
+    val isEmpty: Boolean
+        get() = size == 0
+
+    fun offer(packageName: String, appLabel: String, text: String, priority: Int, now: Long) {
+        var slot = indexOf(packageName)
+        if (slot >= 0) {
+            texts[slot] = text
+            counts[slot]++
+            updatedAt[slot] = now
+            // a burst takes the urgency of its most important notification
+            if (priority > priorities[slot]) priorities[slot] = priority
+            return
+        }
+        slot = if (size < capacity) size++ else evictionCandidate(priority)
+        if (slot < 0) return
+        packages[slot] = packageName
+        labels[slot] = appLabel
+        texts[slot] = text
+        priorities[slot] = priority
+        postedAt[slot] = now
+        updatedAt[slot] = now
+        counts[slot] = 1
+    }
+
+    /** Moves the next entry into [out], false if there is none or the rate limit applies */
+    fun poll(now: Long, out: Entry): Boolean {
+        dropStale(now)
+        if (size == 0 || delayUntilNext(now) > 0) return false
+        var best = 0
+        for (i in 1 until size) {
+            if (priorities[i] > priorities[best] ||
+                (priorities[i] == priorities[best] && postedAt[i] < postedAt[best])) best = i
+        }
+        out.packageName = packages[best]!!
+        out.appLabel = labels[best]!!
+        out.text = texts[best]!!
+        out.priority = priorities[best]
+        out.count = counts[best]
+        removeAt(best)
+        displayTimes[displayHead] = now
+        displayHead = (displayHead + 1) % maxDisplays
+        return true
+    }
+
+    /** Time until the rate limit allows the next display, 0 if it already does */
+    fun delayUntilNext(now: Long): Long {
+        val oldest = displayTimes[displayHead]
+        if (oldest == 0L) return 0L
+        return (oldest + rateWindowMs - now).coerceAtLeast(0L)
+    }
+
+    fun clear() {
+        packages.fill(null)
+        labels.fill(null)
+        texts.fill(null)
+        size = 0
+    }
+
+    private fun indexOf(packageName: String): Int {
+        for (i in 0 until size) {
+            if (packages[i] == packageName) return i
+        }
+        return -1
+    }
+
+    // the oldest entry of the lowest priority, unless the new one ranks even lower
+    private fun evictionCandidate(priority: Int): Int {
+        var victim = 0
+        for (i in 1 until size) {
+            if (priorities[i] < priorities[victim] ||
+                (priorities[i] == priorities[victim] && postedAt[i] < postedAt[victim])) victim = i
+        }
+        return if (priorities[victim] > priority) -1 else victim
+    }
+
+    private fun dropStale(now: Long) {
+        var i = 0
+        while (i < size) {
+            if (now - updatedAt[i] > maxAgeMs) removeAt(i) else i++
+        }
+    }
+
+    // order doesn't matter, so the last entry fills the hole
+    private fun removeAt(index: Int) {
+        val last = --size
+        packages[index] = packages[last]
+        labels[index] = labels[last]
+        texts[index] = texts[last]
+        priorities[index] = priorities[last]
+        postedAt[index] = postedAt[last]
+        updatedAt[index] = updatedAt[last]
+        counts[index] = counts[last]
+        packages[last] = null
+        labels[last] = null
+        texts[last] = null
+    }
+
+    companion object {
+        const val PRIORITY_LOW = 0
+        const val PRIORITY_NORMAL = 1
+        const val PRIORITY_HIGH = 2
+
+        private const val DEFAULT_CAPACITY = 8
+        private const val DEFAULT_MAX_AGE_MS = 15_000L
+        private const val DEFAULT_MAX_DISPLAYS = 6
+        private const val DEFAULT_RATE_WINDOW_MS = 30_000L
+
+        fun priorityOf(category: String?) = when (category) {
+            Notification.CATEGORY_CALL,
+            Notification.CATEGORY_ALARM,
+            Notification.CATEGORY_MISSED_CALL -> PRIORITY_HIGH
+            Notification.CATEGORY_MESSAGE,
+            Notification.CATEGORY_EMAIL,
+            Notification.CATEGORY_EVENT,
+            Notification.CATEGORY_REMINDER -> PRIORITY_NORMAL
+            null -> PRIORITY_NORMAL
+            else -> PRIORITY_LOW
+        }
+    }
+}
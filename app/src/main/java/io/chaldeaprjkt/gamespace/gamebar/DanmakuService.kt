@@ -20,67 +20,106 @@
 
 package io.chaldeaprjkt.gamespace.gamebar
 
-import android.animation.ValueAnimator
 import android.app.Notification
 import android.content.ComponentName
 import android.content.Context
+import android.content.ContextWrapper
+import android.content.pm.PackageManager
 import android.content.res.Configuration
-import android.graphics.Color
 import android.graphics.PixelFormat
+import android.graphics.Rect
 import android.os.Handler
+import android.os.HandlerThread
 import android.os.Looper
+import android.os.Process
 import android.os.RemoteException
+import android.os.SystemClock
 import android.os.UserHandle
 import android.service.notification.NotificationListenerService
 import android.service.notification.StatusBarNotification
 import android.util.Log
-import android.util.TypedValue
 import android.view.Gravity
 import android.view.WindowManager
 import android.view.WindowManager.LayoutParams
-import android.widget.TextView
 
-import androidx.core.animation.addListener
+import androidx.annotation.VisibleForTesting
 
 import dagger.hilt.android.qualifiers.ApplicationContext
 import dagger.hilt.android.scopes.ServiceScoped
 
-import java.util.LinkedList
+import java.util.concurrent.atomic.AtomicBoolean
 
 import javax.inject.Inject
 
 import io.chaldeaprjkt.gamespace.R
 import io.chaldeaprjkt.gamespace.data.AppSettings
 import io.chaldeaprjkt.gamespace.gamebar.DanmakuServiceListener
+import io.chaldeaprjkt.gamespace.utils.ScreenUtils
+import io.chaldeaprjkt.gamespace.utils.SpscQueue
+import io.chaldeaprjkt.gamespace.widget.DanmakuView
 
 interface DanmakuServiceInterface {
     val danmakuNotificationMode: Boolean
-    fun showNotificationAsOverlay(danmakuText: String)
+    /** Read on the ingest thread for every notification */
+    val danmakuFilter: DanmakuFilter
+    /** Called on the ingest thread with an already filtered and formatted notification */
+    fun showNotificationAsOverlay(packageName: String, danmakuText: String, category: String?)
 }
 
 @ServiceScoped
 class DanmakuService @Inject constructor(
     @ApplicationContext private val context: Context,
-    private val appSettings: AppSettings
+    private val appSettings: AppSettings,
+    private val overlayCostMonitor: OverlayCostMonitor,
+    private val stutterDetector: StutterDetector,
+    private val screenUtils: ScreenUtils
 ) : DanmakuServiceInterface {
 
     private lateinit var notificationListener: DanmakuServiceListener
 
-    private val notificationOverlay = TextView(context).apply {
-        gravity = Gravity.CENTER
-        maxLines = 2
-        setTextColor(Color.WHITE)
+    // Notifications are filtered and formatted here, away from the thread
+    // that runs the overlay animations
+    private var ingestThread: HandlerThread? = null
+    private val readyQueue = SpscQueue<PendingDanmaku>(READY_QUEUE_CAPACITY)
+    private val drainScheduled = AtomicBoolean()
+    // quitSafely() doesn't wait for a notification that is already being
+    // processed, so anything handed over after destroy() has to be dropped
+    private val destroyed = AtomicBoolean()
+    private val drainRunnable = Runnable { drainReady() }
+    // app labels by package, only touched on the ingest thread
+    private val appLabels = HashMap<String, String>()
+
+    @VisibleForTesting
+    internal val notificationOverlay = DanmakuView(context).apply {
         isFocusable = false
         isClickable = false
+        // called while drawing, the window can't be removed from there
+        listener = DanmakuView.Listener { handler.post(showNextRunnable) }
     }
 
     private val windowManager: WindowManager = context.getSystemService(WindowManager::class.java)!!
 
     private val handler = Handler(Looper.getMainLooper())
 
-    private val notificationStack = LinkedList<String>()
+    private val notificationQueue = DanmakuQueue()
+    private val nextEntry = DanmakuQueue.Entry()
+
+    /** Entries waiting for a lane or the rate limit */
+    @VisibleForTesting
+    internal val queueDepth: Int
+        get() = notificationQueue.size
+
+    /** Nothing queued and nothing on screen */
+    @VisibleForTesting
+    internal val isIdle: Boolean
+        get() = notificationQueue.isEmpty && notificationOverlay.isIdle
+
+    private val showNextRunnable = Runnable { showNext() }
+
+    private val applyLayoutParams = Runnable { updateViewLayoutSafely(layoutParams) }
 
     private var layoutParams: LayoutParams = LayoutParams().apply {
+        width = LayoutParams.MATCH_PARENT
         height = LayoutParams.WRAP_CONTENT
         flags = flags or LayoutParams.FLAG_NOT_FOCUSABLE or
                 LayoutParams.FLAG_NOT_TOUCHABLE or
@@ -93,39 +132,62 @@ class DanmakuService @Inject constructor(
     private var isPortrait: Boolean =
             context.resources.configuration.orientation == Configuration.ORIENTATION_PORTRAIT
 
+    // a fold or resize can change the display without flipping the orientation
+    private val displayBounds = Rect(windowManager.maximumWindowMetrics.bounds)
+
     private var verticalOffsetLandscape = 0
     private var verticalOffsetPortrait = 0
 
-    private var overlayAlphaAnimator: ValueAnimator? = null
-    private var overlayPositionAnimator: ValueAnimator? = null
-
     fun init() {
         notificationListener = DanmakuServiceListener()
         notificationListener.danmakuServiceInterface = this
+        with(context.resources) {
+            verticalOffsetLandscape =
+                getDimensionPixelSize(R.dimen.notification_vertical_offset_landscape)
+            verticalOffsetPortrait =
+                getDimensionPixelSize(R.dimen.notification_vertical_offset_portrait)
+        }
         updateParams()
+        screenUtils.excludeFromScreenshot(notificationOverlay)
+        overlayCostMonitor.track("danmaku", notificationOverlay)
         registerListener()
     }
 
     fun updateConfiguration(newConfig: Configuration) {
-        isPortrait = newConfig.orientation == Configuration.ORIENTATION_PORTRAIT
-        overlayAlphaAnimator?.end()
-        overlayPositionAnimator?.end()
+        val portrait = newConfig.orientation == Configuration.ORIENTATION_PORTRAIT
+        val bounds = windowManager.maximumWindowMetrics.bounds
+        if (portrait == isPortrait && bounds == displayBounds) return
+        isPortrait = portrait
+        displayBounds.set(bounds)
         updateParams()
-        updateViewLayoutSafely(layoutParams)
+        notificationOverlay.removeCallbacks(applyLayoutParams)
+        notificationOverlay.postOnAnimation(applyLayoutParams)
     }
 
     fun destroy() {
+        destroyed.set(true)
+        overlayCostMonitor.untrack(notificationOverlay)
         unregisterListener()
-        overlayAlphaAnimator?.cancel()
-        overlayPositionAnimator?.cancel()
+        handler.removeCallbacksAndMessages(null)
+        notificationQueue.clear()
+        notificationOverlay.listener = null
+        notificationOverlay.clear()
         removeViewSafely()
     }
 
     private fun registerListener() {
         val componentName = ComponentName(context, DanmakuService::class.java)
+        val thread = HandlerThread("DanmakuIngest", Process.THREAD_PRIORITY_BACKGROUND).also {
+            it.start()
+            ingestThread = it
+        }
+        // the listener dispatches its callbacks on the looper of the context it is attached to
+        val ingestContext = object : ContextWrapper(context) {
+            override fun getMainLooper(): Looper = thread.looper
+        }
         try {
             notificationListener.registerAsSystemService(
-                context,
+                ingestContext,
                 componentName,
                 UserHandle.USER_CURRENT
             )
@@ -135,24 +197,20 @@ class DanmakuService @Inject constructor(
     }
 
     private fun unregisterListener() {
+        notificationListener.danmakuServiceInterface = null
         try {
             notificationListener.unregisterAsSystemService()
         } catch (e: RemoteException) {
             Log.e(TAG, "RemoteException while registering danmaku service")
         }
+        ingestThread?.quitSafely()
+        ingestThread = null
+        while (readyQueue.poll() != null) Unit
     }
 
     private fun updateParams() {
-        with(context.resources) {
-            verticalOffsetLandscape =
-                getDimensionPixelSize(R.dimen.notification_vertical_offset_landscape)
-            verticalOffsetPortrait =
-                getDimensionPixelSize(R.dimen.notification_vertical_offset_portrait)
-        }
         layoutParams.y = getOffsetForPosition()
-        layoutParams.width = (NOTIFICATION_MAX_WIDTH * windowManager.currentWindowMetrics.bounds.width()) / 100
         notificationOverlay.setTextSize(
-            TypedValue.COMPLEX_UNIT_PX,
             (if (isPortrait) NOTIFICATION_SIZE_PORTRAIT else NOTIFICATION_SIZE_LANDSCAPE).toFloat()
         )
     }
@@ -161,72 +219,92 @@ class DanmakuService @Inject constructor(
         return if (isPortrait) verticalOffsetPortrait else verticalOffsetLandscape
     }
 
-    override fun showNotificationAsOverlay(notification: String) {
-        if (notificationOverlay.parent == null) {
-            notificationOverlay.alpha = 0f
-            notificationOverlay.text = notification
-            windowManager.addView(notificationOverlay, layoutParams)
-            pushNotification()
-        } else {
-            notificationStack.add(notification)
-        }
+    override fun showNotificationAsOverlay(packageName: String, danmakuText: String, category: String?) {
+        if (destroyed.get()) return
+        val pending = PendingDanmaku(packageName, appLabelOf(packageName), danmakuText,
+            DanmakuQueue.priorityOf(category))
+        // a full queue means the UI thread is far behind, the bounded queue would drop it anyway
+        if (!readyQueue.offer(pending)) return
+        if (drainScheduled.compareAndSet(false, true)) handler.post(drainRunnable)
     }
 
-    override val danmakuNotificationMode: Boolean
-        get() = appSettings.danmakuNotification
-
-    private fun pushNotification() {
-        val end = getOffsetForPosition().toFloat()
-        val start = end * (1 - SLIDE_ANIMATION_DISTANCE_FACTOR)
-        overlayPositionAnimator = getPositionAnimator(APPEAR_ANIMATION_DURATION, start, end).also {
-            it.addListener(onEnd = {
-                handler.postDelayed({
-                    popNotification()
-                }, DISPLAY_NOTIFICATION_DURATION)
-            })
-            it.start()
+    private fun drainReady() {
+        drainScheduled.set(false)
+        if (destroyed.get()) {
+            while (readyQueue.poll() != null) Unit
+            return
+        }
+        val now = SystemClock.uptimeMillis()
+        var received = false
+        while (true) {
+            val pending = readyQueue.poll() ?: break
+            notificationQueue.offer(pending.packageName, pending.appLabel, pending.text,
+                pending.priority, now)
+            received = true
         }
-        startAlphaAnimation(APPEAR_ANIMATION_DURATION, 0f, 1f)
+        if (!received) return
+        stutterDetector.noteNotification()
+        showNext()
     }
 
-    private fun popNotification() {
-        val start = getOffsetForPosition().toFloat()
-        val end = start * (1 + SLIDE_ANIMATION_DISTANCE_FACTOR)
-        overlayPositionAnimator =
-            getPositionAnimator(DISAPPEAR_ANIMATION_DURATION, start, end).also {
-                it.addListener(onEnd = {
-                    if (notificationStack.isEmpty()) {
-                        removeViewSafely()
-                    } else {
-                        notificationOverlay.alpha = 0f
-                        notificationOverlay.text = notificationStack.pop()
-                        pushNotification()
-                    }
-                })
-                it.start()
+    // Fills free lanes from the queue, then waits for whichever comes first
+    // of a lane freeing up and the rate limit allowing another comment.
+    private fun showNext() {
+        handler.removeCallbacks(showNextRunnable)
+        val now = SystemClock.uptimeMillis()
+        // degraded overlays keep to a single lane
+        notificationOverlay.laneCount =
+            if (overlayCostMonitor.isDegraded) 1 else DanmakuView.MAX_LANES
+        while (notificationOverlay.timeUntilFreeLane(now) == 0L &&
+            notificationQueue.poll(now, nextEntry)) {
+            if (notificationOverlay.parent == null) {
+                windowManager.addView(notificationOverlay, layoutParams)
             }
-        startAlphaAnimation(DISAPPEAR_ANIMATION_DURATION, 1f, 0f)
+            notificationOverlay.add(textOf(nextEntry), now)
+        }
+        if (notificationOverlay.isIdle) removeViewSafely()
+        if (!notificationQueue.isEmpty) {
+            val wait = maxOf(notificationOverlay.timeUntilFreeLane(now),
+                notificationQueue.delayUntilNext(now), MIN_SCHEDULE_DELAY_MS)
+            handler.postDelayed(showNextRunnable, wait)
+        }
     }
 
-    private fun getPositionAnimator(duration: Long, vararg values: Float): ValueAnimator {
-        val lpCopy = LayoutParams().also { it.copyFrom(layoutParams) }
-        return ValueAnimator.ofFloat(*values).apply {
-            this.duration = duration
-            addUpdateListener {
-                lpCopy.y = (it.animatedValue as Float).toInt()
-                updateViewLayoutSafely(lpCopy)
-            }
+    private fun textOf(entry: DanmakuQueue.Entry): String =
+        if (entry.count > 1) {
+            context.resources.getQuantityString(R.plurals.danmaku_coalesced, entry.count,
+                entry.appLabel, entry.count)
+        } else {
+            entry.text
+        }
+
+    // a binder call to the package manager, so only the first notification of an app pays it
+    private fun appLabelOf(packageName: String): String = appLabels.getOrPut(packageName) {
+        try {
+            val pm = context.packageManager
+            pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)).toString()
+        } catch (e: PackageManager.NameNotFoundException) {
+            packageName
         }
     }
 
-    private fun startAlphaAnimation(duration: Long, vararg values: Float) {
-        overlayAlphaAnimator = ValueAnimator.ofFloat(*values).apply {
-            this.duration = duration
-            addUpdateListener {
-                notificationOverlay.alpha = it.animatedValue as Float
+    override val danmakuNotificationMode: Boolean
+        get() = appSettings.danmakuNotification
+
+    // Preferences hand out the same string until it changes, so this only
+    // recompiles after the rules were edited
+    private var filterSource: String? = null
+    private var compiledFilter = DanmakuFilter.EMPTY
+
+    override val danmakuFilter: DanmakuFilter
+        get() {
+            val source = appSettings.danmakuFilterRules
+            if (source !== filterSource) {
+                compiledFilter = DanmakuFilter.compile(source)
+                filterSource = source
             }
-        }.also { it.start() }
-    }
+            return compiledFilter
+        }
 
     private fun updateViewLayoutSafely(layoutParams: LayoutParams) {
         if (notificationOverlay.parent != null)
@@ -238,20 +316,21 @@ class DanmakuService @Inject constructor(
             windowManager.removeViewImmediate(notificationOverlay)
     }
 
+    private class PendingDanmaku(
+        val packageName: String,
+        val appLabel: String,
+        val text: String,
+        val priority: Int
+    )
+
     companion object {
         private const val TAG = "DanmakuService"
 
-        private const val SLIDE_ANIMATION_DISTANCE_FACTOR = 0.5f
-
-        private const val APPEAR_ANIMATION_DURATION = 500L
-        private const val DISPLAY_NOTIFICATION_DURATION = 2000L
-        private const val DISAPPEAR_ANIMATION_DURATION = 300L
+        private const val MIN_SCHEDULE_DELAY_MS = 16L
 
         private const val NOTIFICATION_SIZE_LANDSCAPE = 60
         private const val NOTIFICATION_SIZE_PORTRAIT = 60
 
-        private const val NOTIFICATION_MAX_WIDTH = 75
-
-        private const val NOTIFICATIONS_MAX_CACHED = 99
+        private const val READY_QUEUE_CAPACITY = 32
     }
 }
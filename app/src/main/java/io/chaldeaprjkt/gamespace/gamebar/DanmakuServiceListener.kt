@@ -20,41 +20,65 @@
 package io.chaldeaprjkt.gamespace.gamebar
 
 import android.app.Notification
+import android.app.NotificationManager
+import android.os.SystemClock
 import android.service.notification.NotificationListenerService
 import android.service.notification.StatusBarNotification
 
+import androidx.annotation.VisibleForTesting
+
 import io.chaldeaprjkt.gamespace.data.AppSettings
 
 class DanmakuServiceListener : NotificationListenerService() {
 
-    private val postedNotifications = mutableMapOf<String, Long>()
+    // only touched from the ingest thread the listener is registered on
+    private val postedNotifications = DanmakuDedupCache()
+    private val textBuilder = StringBuilder(TEXT_CAPACITY)
+    private val ranking = Ranking()
 
+    // cleared from the main thread when the service goes away
+    @Volatile
     var danmakuServiceInterface: DanmakuServiceInterface? = null
 
-    override fun onNotificationPosted(sbn: StatusBarNotification) {
-    if (!(danmakuServiceInterface?.danmakuNotificationMode ?: false) || !sbn.isClearable || sbn.isOngoing || sbn.getIsContentSecure()) return
+    override fun onNotificationPosted(sbn: StatusBarNotification, rankingMap: RankingMap?) {
+        if (sbn.getIsContentSecure()) return
+        process(sbn, rankingMap)
+    }
+
+    // everything after the secure check, which needs the platform's own framework
+    @VisibleForTesting
+    internal fun process(sbn: StatusBarNotification, rankingMap: RankingMap?) {
+        val service = danmakuServiceInterface ?: return
+        if (!service.danmakuNotificationMode || !sbn.isClearable || sbn.isOngoing) return
 
         val extras = sbn.notification.extras
         val title = extras.getString(Notification.EXTRA_TITLE) ?: extras.getString(Notification.EXTRA_TITLE_BIG)
         val text = extras.getString(Notification.EXTRA_TEXT)
 
-        var danmakuText = ""
-        if (title?.isNotBlank() == true) danmakuText += "[$title] "
-        if (text?.isNotBlank() == true) danmakuText += text
+        val hasTitle = title?.isNotBlank() == true
+        val hasText = text?.isNotBlank() == true
+        if (!hasTitle && !hasText) return
 
-        val time = sbn.notification.`when`
-        if (danmakuText.isNotBlank() && !(postedNotifications[danmakuText] == time)) {
-            danmakuServiceInterface?.showNotificationAsOverlay(danmakuText)
-            insertPostedNotification(danmakuText, time)
+        val filter = service.danmakuFilter
+        if (!filter.isEmpty) {
+            val importance = if (rankingMap?.getRanking(sbn.key, ranking) == true) ranking.importance
+            else NotificationManager.IMPORTANCE_DEFAULT
+            if (!filter.allows(sbn.packageName, sbn.notification.category, importance, title, text)) return
         }
-    }
 
-    private fun insertPostedNotification(danmakuText: String, time: Long) {
-        if (postedNotifications.size >= NOTIFICATIONS_MAX_CACHED) postedNotifications.clear()
-        postedNotifications[danmakuText] = time
+        val contentHash = DanmakuDedupCache.contentHashOf(title, text, sbn.notification.`when`)
+        val key = DanmakuDedupCache.keyOf(sbn.key, contentHash)
+        if (!postedNotifications.add(key, SystemClock.elapsedRealtime())) return
+
+        // duplicates are dropped above, so the string is only built for what gets shown
+        textBuilder.setLength(0)
+        if (hasTitle) textBuilder.append('[').append(title).append("] ")
+        if (hasText) textBuilder.append(text)
+        service.showNotificationAsOverlay(sbn.packageName, textBuilder.toString(),
+            sbn.notification.category)
     }
 
     companion object {
-        private const val NOTIFICATIONS_MAX_CACHED = 99
+        private const val TEXT_CAPACITY = 256
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.app.ActivityTaskManager
+import android.content.Context
+import android.view.WindowManager
+import android.window.TaskFpsCallback
+
+/**
+ * Single owner of the game's [TaskFpsCallback] registration for a session.
+ * Samples are collected into [FrameStats] and fanned out to listeners on the
+ * main thread, independently of which overlay happens to display them.
+ * Other threads read [published] instead of the main-thread-only stats.
+ */
+class FrameRateMonitor(private val context: Context) {
+
+    fun interface OnFpsListener {
+        fun onFpsReported(fps: Float)
+    }
+
+    private val wm by lazy { context.getSystemService(WindowManager::class.java)!! }
+    private val listeners = mutableListOf<OnFpsListener>()
+    private var registeredTaskId = INVALID_TASK_ID
+
+    /** Immutable copy of [stats] as of one report, safe to read from any thread */
+    class PublishedStats(val latest: Float, val total: Long, val window: FrameStats.Snapshot)
+
+    val stats = FrameStats()
+
+    /** Replaced after every report, null until the session's first one */
+    @Volatile
+    var published: PublishedStats? = null
+        private set
+
+    private val taskFpsCallback = object : TaskFpsCallback() {
+        override fun onFpsReported(fps: Float) {
+            stats.record(fps)
+            // a new snapshot every time, readers may still hold the previous one
+            published = PublishedStats(stats.latest, stats.total, stats.computeInto(FrameStats.Snapshot()))
+            for (i in listeners.indices) {
+                listeners[i].onFpsReported(fps)
+            }
+        }
+    }
+
+    fun start() {
+        stats.reset()
+        published = null
+        ensureRegistered()
+    }
+
+    fun stop() {
+        if (registeredTaskId == INVALID_TASK_ID) return
+        wm.unregisterTaskFpsCallback(taskFpsCallback)
+        registeredTaskId = INVALID_TASK_ID
+    }
+
+    /**
+     * Follow the focused task, only touching the registration when the game
+     * has actually moved to another task. Statistics are kept across tasks.
+     */
+    fun ensureRegistered() {
+        val taskId = ActivityTaskManager.getService()?.focusedRootTaskInfo?.taskId ?: return
+        if (taskId == registeredTaskId) return
+        if (registeredTaskId != INVALID_TASK_ID) {
+            wm.unregisterTaskFpsCallback(taskFpsCallback)
+        }
+        wm.registerTaskFpsCallback(taskId, context.mainExecutor, taskFpsCallback)
+        registeredTaskId = taskId
+    }
+
+    fun addListener(listener: OnFpsListener) {
+        if (!listeners.contains(listener)) listeners.add(listener)
+    }
+
+    fun removeListener(listener: OnFpsListener) {
+        listeners.remove(listener)
+    }
+
+    companion object {
+        private const val INVALID_TASK_ID = -1
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import java.util.Arrays
+
+/**
+ * Rolling statistics over the most recent FPS samples, kept in a primitive
+ * ring buffer. Recording a sample never allocates, statistics are computed
+ * on demand into a caller-owned [Snapshot].
+ */
+class FrameStats(val capacity: Int = DEFAULT_CAPACITY) {
+
+    private val samples = FloatArray(capacity)
+    private val sorted = FloatArray(capacity)
+    private var head = 0
+
+    /** Number of samples currently held, at most [capacity] */
+    var size = 0
+        private set
+
+    /** Number of samples recorded since the last [reset] */
+    var total = 0L
+        private set
+
+    var latest = 0f
+        private set
+
+    fun record(fps: Float) {
+        samples[head] = fps
+        head = (head + 1) % capacity
+        if (size < capacity) size++
+        total++
+        latest = fps
+    }
+
+    fun reset() {
+        head = 0
+        size = 0
+        total = 0
+        latest = 0f
+    }
+
+    /**
+     * Compute the statistics of the last [window] samples, or of every held
+     * sample when the window is larger than what's been recorded.
+     */
+    fun computeInto(out: Snapshot, window: Int = capacity): Snapshot {
+        val count = window.coerceAtMost(size)
+        out.samples = count
+        if (count == 0) {
+            out.clear()
+            return out
+        }
+
+        var sum = 0.0
+        var start = head - count
+        if (start < 0) start += capacity
+        for (i in 0 until count) {
+            val value = samples[(start + i) % capacity]
+            sorted[i] = value
+            sum += value
+        }
+        val mean = sum / count
+        var squares = 0.0
+        for (i in 0 until count) {
+            val delta = sorted[i] - mean
+            squares += delta * delta
+        }
+
+        Arrays.sort(sorted, 0, count)
+        out.average = mean.toFloat()
+        out.min = sorted[0]
+        out.max = sorted[count - 1]
+        out.low1Percent = sorted[((count - 1) * 0.01f).toInt()]
+        out.low01Percent = sorted[((count - 1) * 0.001f).toInt()]
+        out.variance = (squares / count).toFloat()
+        return out
+    }
+
+    /** Mutable holder so that readers can reuse a single instance */
+    class Snapshot {
+        var samples = 0
+        var average = 0f
+        var min = 0f
+        var max = 0f
+        var low1Percent = 0f
+        var low01Percent = 0f
+        var variance = 0f
+
+        /** Standard deviation of the FPS, lower means a steadier frame rate */
+        val stability: Float
+            get() = Math.sqrt(variance.toDouble()).toFloat()
+
+        fun clear() {
+            samples = 0
+            average = 0f
+            min = 0f
+            max = 0f
+            low1Percent = 0f
+            low01Percent = 0f
+            variance = 0f
+        }
+    }
+
+    companion object {
+        // TaskFpsCallback reports about once per second, so this covers
+        // roughly the last half hour of play.
+        const val DEFAULT_CAPACITY = 1800
+    }
+}
@@ -19,8 +19,10 @@ package io.chaldeaprjkt.gamespace.gamebar
 import android.app.Service
 import android.content.Intent
 import android.content.res.Configuration
+import android.graphics.Outline
 import android.graphics.PixelFormat
 import android.graphics.Point
+import android.graphics.Rect
 import android.os.Binder
 import android.os.Handler
 import android.os.Looper
@@ -28,6 +30,8 @@ import android.view.Gravity
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
+import android.view.ViewOutlineProvider
+import android.view.ViewTreeObserver
 import android.view.WindowManager
 import android.widget.FrameLayout
 import android.widget.ImageButton
@@ -35,6 +39,7 @@ import android.widget.LinearLayout
 import androidx.core.view.children
 import androidx.core.view.isVisible
 import androidx.core.view.marginStart
+import androidx.core.view.updateLayoutParams
 import androidx.core.view.updateMargins
 import androidx.core.view.updatePadding
 import com.android.systemui.screenrecord.IRecordingCallback
@@ -48,7 +53,11 @@ import io.chaldeaprjkt.gamespace.utils.registerDraggableTouchListener
 import io.chaldeaprjkt.gamespace.utils.statusbarHeight
 import io.chaldeaprjkt.gamespace.widget.MenuSwitcher
 import io.chaldeaprjkt.gamespace.widget.PanelView
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import javax.inject.Inject
+import kotlin.math.max
+import kotlin.math.min
 
 @AndroidEntryPoint(Service::class)
 class GameBarService : Hilt_GameBarService() {
@@ -61,6 +70,15 @@ class GameBarService : Hilt_GameBarService() {
     @Inject
     lateinit var danmakuService: DanmakuService
 
+    @Inject
+    lateinit var overlayCostMonitor: OverlayCostMonitor
+
+    @Inject
+    lateinit var frameRateMonitor: FrameRateMonitor
+
+    @Inject
+    lateinit var stutterDetector: StutterDetector
+
     private val wm by lazy { getSystemService(WINDOW_SERVICE) as WindowManager }
     private val handler by lazy { Handler(Looper.getMainLooper()) }
 
@@ -102,23 +120,80 @@ class GameBarService : Hilt_GameBarService() {
     private lateinit var rootPanelView: LinearLayout
     private lateinit var panelView: PanelView
     private val binder = GameBarBinder()
+    private val gameFpsListener = FrameRateMonitor.OnFpsListener {
+        overlayCostMonitor.onGameFpsReported(it)
+    }
     private val firstPaint = Runnable { initActions() }
+
+    // The bar is measured once in its expanded form. Collapsing only hides,
+    // clips and shifts the content so the window never needs to be resized.
+    private val collapsedBounds = Rect()
+    private var collapsedInset = 0
+    private val visibleBarBounds = Rect()
+
+    private val barOutlineProvider = object : ViewOutlineProvider() {
+        override fun getOutline(view: View, outline: Outline) {
+            if (barExpanded) {
+                outline.setRoundRect(0, 0, view.width, view.height, 32.dp.toFloat())
+                return
+            }
+            val radius = collapsedBounds.height() / 2f
+            val extent = collapsedBounds.height()
+            with(collapsedBounds) {
+                when {
+                    barDragged -> outline.setRoundRect(this, radius)
+                    barLayoutParam.x < 0 ->
+                        outline.setRoundRect(left - extent, top, right, bottom, radius)
+                    else -> outline.setRoundRect(left, top, right + extent, bottom, radius)
+                }
+            }
+        }
+    }
+
+    private val touchableInsetsListener =
+        ViewTreeObserver.OnComputeInternalInsetsListener { info ->
+            if (barExpanded) {
+                visibleBarBounds.set(0, 0, barView.width, barView.height)
+            } else {
+                visibleBarBounds.set(collapsedBounds)
+            }
+            visibleBarBounds.offset(
+                barView.left + barView.translationX.toInt(),
+                barView.top + barView.translationY.toInt()
+            )
+            info.setTouchableInsets(ViewTreeObserver.InternalInsetsInfo.TOUCHABLE_INSETS_REGION)
+            info.touchableRegion.set(visibleBarBounds)
+        }
+
+    // Dock limits for both orientations of the current display. They only
+    // need to be refreshed when the display itself changes size (e.g. folding).
+    private val portraitDock = Rect()
+    private val landscapeDock = Rect()
+    private val dockDisplaySize = Point()
+    private val applyDockedLayout = Runnable { updateLayout() }
+
+    private val barDragged: Boolean
+        get() = !barExpanded && barView.translationX == 0f
+
     private var barExpanded: Boolean = false
         set(value) {
             field = value
             menuSwitcher.updateIconState(value, barLayoutParam.x)
             barView.children.forEach {
                 if (it.id != R.id.action_menu_switcher) {
-                    it.isVisible = value
+                    it.visibility = if (value) View.VISIBLE else View.INVISIBLE
                 }
             }
+            if (!menuSwitcher.isDragged) {
+                barView.translationX = dockTranslation()
+            }
             updateBackground()
-            updateContainerGaps()
         }
 
     private var showPanel: Boolean = false
         set(value) {
             field = value
+            stutterDetector.isPanelOpen = value
             if (value) {
                 if (!::rootPanelView.isInitialized) 
                     setupPanelView()
@@ -142,6 +217,21 @@ class GameBarService : Hilt_GameBarService() {
         barView.alpha = appSettings.menuOpacity / 100f
         menuSwitcher = rootBarView.findViewById(R.id.action_menu_switcher)!!
         menuSwitcher.alpha = appSettings.menuOpacity / 100f
+        barView.outlineProvider = barOutlineProvider
+        barView.clipToOutline = true
+        rootBarView.addOnAttachStateChangeListener(object : View.OnAttachStateChangeListener {
+            override fun onViewAttachedToWindow(v: View) {
+                v.viewTreeObserver.addOnComputeInternalInsetsListener(touchableInsetsListener)
+            }
+
+            override fun onViewDetachedFromWindow(v: View) {
+                v.viewTreeObserver.removeOnComputeInternalInsetsListener(touchableInsetsListener)
+            }
+        })
+        screenUtils.excludeFromScreenshot(rootBarView)
+        overlayCostMonitor.track("bar", rootBarView)
+        frameRateMonitor.addListener(gameFpsListener)
+        precomputeBarGeometry()
         danmakuService.init()
     }
 
@@ -161,28 +251,36 @@ class GameBarService : Hilt_GameBarService() {
     }
 
     override fun onDestroy() {
+        frameRateMonitor.removeListener(gameFpsListener)
         danmakuService.destroy()
         onGameLeave()
+        overlayCostMonitor.untrack(rootBarView)
+        if (::rootPanelView.isInitialized) overlayCostMonitor.untrack(rootPanelView)
         super.onDestroy()
     }
 
     override fun onConfigurationChanged(newConfig: Configuration) {
         super.onConfigurationChanged(newConfig)
-        if (!rootBarView.isVisible) {
-            handler.removeCallbacks(firstPaint)
-            handler.postDelayed({
-                firstPaint.run()
-                dockCollapsedMenu()
-            }, 100)
-        } else {
-            dockCollapsedMenu()
+        // A hidden bar gets docked by the pending first paint, a visible one
+        // is moved in place with a single layout update on the next frame.
+        // Once the game has left the bar is detached and stays untouched.
+        if (!shouldClose && rootBarView.isAttachedToWindow && rootBarView.isVisible) {
+            applyDockedPosition()
+            rootBarView.removeCallbacks(applyDockedLayout)
+            rootBarView.postOnAnimation(applyDockedLayout)
         }
         danmakuService.updateConfiguration(newConfig)
     }
 
+    override fun dump(fd: FileDescriptor, writer: PrintWriter, args: Array<out String>?) {
+        overlayCostMonitor.dump(writer)
+    }
+
     // for client service
     fun onGameStart() {
         shouldClose = false
+        overlayCostMonitor.reset()
+        frameRateMonitor.start()
         rootBarView.isVisible = false
         rootBarView.alpha = 0f
         updateRootBarView()
@@ -191,6 +289,7 @@ class GameBarService : Hilt_GameBarService() {
 
     fun onGameLeave() {
         shouldClose = true
+        frameRateMonitor.stop()
         if (::rootPanelView.isInitialized && rootPanelView.isAttachedToWindow) {
             wm.removeViewImmediate(rootPanelView)
         }
@@ -225,10 +324,14 @@ class GameBarService : Hilt_GameBarService() {
     private fun initActions() {
         if (shouldClose) return
         rootBarView.isVisible = true
-        rootBarView.animate()
-            .alpha(1f)
-            .apply { duration = 300 }
-            .start()
+        if (overlayCostMonitor.isDegraded) {
+            rootBarView.alpha = 1f
+        } else {
+            rootBarView.animate()
+                .alpha(1f)
+                .apply { duration = 300 }
+                .start()
+        }
         barExpanded = false
         barLayoutParam.x = appSettings.x
         barLayoutParam.y = appSettings.y
@@ -240,8 +343,33 @@ class GameBarService : Hilt_GameBarService() {
         recorderButton()
     }
 
+    private fun precomputeBarGeometry() {
+        barView.updatePadding(8, 8, 8, 8)
+        barView.updateLayoutParams<ViewGroup.MarginLayoutParams> {
+            updateMargins(right = 48, left = 48)
+        }
+        // the FPS/CPU readout is wider than the icons at most font scales
+        menuSwitcher.updateLayoutParams {
+            width = maxOf(resources.getDimensionPixelSize(R.dimen.actions_size),
+                menuSwitcher.measureReadoutWidth())
+        }
+        val unspecified = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED)
+        rootBarView.measure(unspecified, unspecified)
+        rootBarView.layout(0, 0, rootBarView.measuredWidth, rootBarView.measuredHeight)
+        barLayoutParam.width = rootBarView.measuredWidth
+        barLayoutParam.height = rootBarView.measuredHeight
+        with(menuSwitcher) {
+            collapsedBounds.set(left, top, right, bottom)
+        }
+        collapsedInset = barView.left + menuSwitcher.left
+    }
+
+    private fun dockTranslation(): Float {
+        val offset = if (barExpanded) 22f else 22f + collapsedInset
+        return if (barLayoutParam.x < 0) -offset else offset
+    }
+
     private fun updateBackground() {
-        val barDragged = !barExpanded && barView.translationX == 0f
         val collapsedAtStart = !barDragged && barLayoutParam.x < 0
         val collapsedAtEnd = !barDragged && barLayoutParam.x > 0
         barView.setBackgroundResource(
@@ -252,38 +380,35 @@ class GameBarService : Hilt_GameBarService() {
                 else -> R.drawable.bar_normal
             }
         )
+        barView.invalidateOutline()
     }
 
-    private fun updateContainerGaps() {
-        if (barExpanded) {
-            barView.updatePadding(8, 8, 8, 8)
-            (barView.layoutParams as ViewGroup.MarginLayoutParams)
-                .updateMargins(right = 48, left = 48)
-        } else {
-            barView.updatePadding(0, 0, 0, 0)
-            (barView.layoutParams as ViewGroup.MarginLayoutParams)
-                .updateMargins(right = 0, left = 0)
+    private fun dockBounds(): Rect {
+        val bounds = wm.maximumWindowMetrics.bounds
+        val shortSide = min(bounds.width(), bounds.height())
+        val longSide = max(bounds.width(), bounds.height())
+        if (dockDisplaySize.x != shortSide || dockDisplaySize.y != longSide) {
+            dockDisplaySize.set(shortSide, longSide)
+            val safeArea = statusbarHeight + 4.dp
+            portraitDock.set(-shortSide / 2, safeArea, shortSide / 2, longSide - safeArea)
+            landscapeDock.set(-longSide / 2, safeArea, longSide / 2, shortSide - safeArea)
         }
+        return if (bounds.width() < bounds.height()) portraitDock else landscapeDock
     }
 
-    private fun dockCollapsedMenu() {
-        val halfWidth = wm.maximumWindowMetrics.bounds.width() / 2
-        if (barLayoutParam.x < 0) {
-            barView.translationX = -22f
-            barLayoutParam.x = -halfWidth
-        } else {
-            barView.translationX = 22f
-            barLayoutParam.x = halfWidth
-        }
-
-        val safeArea = statusbarHeight + 4.dp
-        val safeHeight = wm.maximumWindowMetrics.bounds.height() - safeArea
-        barLayoutParam.y = barLayoutParam.y.coerceIn(safeArea, safeHeight)
+    private fun applyDockedPosition() {
+        val dock = dockBounds()
+        barLayoutParam.x = if (barLayoutParam.x < 0) dock.left else dock.right
+        barLayoutParam.y = barLayoutParam.y.coerceIn(dock.top, dock.bottom)
+        barView.translationX = dockTranslation()
 
         updateBackground()
-        updateContainerGaps()
         menuSwitcher.showFps = if (barExpanded) false else appSettings.showFps
         menuSwitcher.updateIconState(barExpanded, barLayoutParam.x)
+    }
+
+    private fun dockCollapsedMenu() {
+        applyDockedPosition()
         updateRootBarView()
     }
 
@@ -292,6 +417,8 @@ class GameBarService : Hilt_GameBarService() {
             .inflate(R.layout.window_panel, FrameLayout(this), false) as LinearLayout
         panelView = rootPanelView.findViewById(R.id.panel_view)!!
         panelView.alpha = appSettings.menuOpacity / 100f
+        screenUtils.excludeFromScreenshot(rootPanelView)
+        overlayCostMonitor.track("panel", rootPanelView)
         rootPanelView.setOnClickListener {
             showPanel = false
         }
@@ -306,23 +433,10 @@ class GameBarService : Hilt_GameBarService() {
         panelView.relativeY = barView.locationOnScreen.last() - barView.height
     }
 
+    // The bar and panel are excluded from captures, so there is no need to
+    // hide them first. The bar stays expanded to allow queueing more shots.
     private fun takeShot() {
-        val afterShot: () -> Unit = {
-            barExpanded = false
-            handler.postDelayed({
-                updateLayout { it.alpha = 1f }
-            }, 100)
-        }
-
-        updateLayout { it.alpha = 0f }
-        handler.postDelayed({
-            try {
-                screenUtils.takeScreenshot { afterShot() }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                afterShot()
-            }
-        }, 250)
+        screenUtils.takeScreenshot { barExpanded = false }
     }
 
     private fun menuSwitcherButton() {
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.graphics.HardwareRenderer
+import android.graphics.HardwareRendererObserver
+import android.os.Handler
+import android.os.Looper
+import android.view.FrameMetrics
+import android.view.View
+import java.io.PrintWriter
+
+/**
+ * Measures the rendering cost of GameSpace's own overlay windows and tells
+ * the overlays to degrade their animations when they get too expensive or
+ * when the game itself starts dropping frames. The game's target is the best
+ * FPS of its recent reports, so a game that renders its menus faster than
+ * its gameplay isn't held to the menu rate for the whole session.
+ *
+ * Overlay windows are added straight to the WindowManager and have no [android.view.Window],
+ * so frame metrics are read through the renderer observer that backs
+ * [android.view.Window.OnFrameMetricsAvailableListener].
+ */
+class OverlayCostMonitor {
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val overlays = mutableListOf<TrackedOverlay>()
+
+    // latest FPS reports, their maximum is what the game currently aims for
+    private val recentFps = FloatArray(TARGET_WINDOW_REPORTS)
+    private var recentFpsHead = 0
+    private var targetFps = 0f
+    private var slowFpsReports = 0
+
+    var isDegraded = false
+        private set
+
+    /** Sum of the average per-frame cost of every tracked overlay */
+    val averageCostNanos: Long
+        get() = overlays.sumOf { it.averageCostNanos }
+
+    fun track(name: String, view: View) {
+        if (overlays.any { it.view === view }) return
+        val overlay = TrackedOverlay(name, view)
+        overlays.add(overlay)
+        view.addOnAttachStateChangeListener(overlay)
+        if (view.isAttachedToWindow) {
+            overlay.onViewAttachedToWindow(view)
+        }
+    }
+
+    /** Stops measuring [view], to be called when its owner is destroyed */
+    fun untrack(view: View) {
+        val overlay = overlays.firstOrNull { it.view === view } ?: return
+        view.removeOnAttachStateChangeListener(overlay)
+        overlay.onViewDetachedFromWindow(view)
+        overlays.remove(overlay)
+        updateDegradation()
+    }
+
+    fun onGameFpsReported(fps: Float) {
+        recentFps[recentFpsHead] = fps
+        recentFpsHead = (recentFpsHead + 1) % recentFps.size
+        targetFps = recentFps.max()
+        if (fps < targetFps * FPS_TARGET_RATIO) {
+            slowFpsReports++
+        } else {
+            slowFpsReports = 0
+        }
+        updateDegradation()
+    }
+
+    fun reset() {
+        recentFps.fill(0f)
+        recentFpsHead = 0
+        targetFps = 0f
+        slowFpsReports = 0
+        overlays.forEach { it.reset() }
+        updateDegradation()
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("OverlayCostMonitor:")
+        pw.println("  degraded=$isDegraded targetFps=$targetFps slowFpsReports=$slowFpsReports")
+        overlays.forEach { it.dump(pw) }
+    }
+
+    private fun updateDegradation() {
+        val overBudget = overlays.any { it.averageCostNanos > OVERLAY_FRAME_BUDGET_NS }
+        isDegraded = overBudget || slowFpsReports >= SLOW_FPS_REPORTS_THRESHOLD
+    }
+
+    private inner class TrackedOverlay(private val name: String, val view: View) :
+        View.OnAttachStateChangeListener,
+        HardwareRendererObserver.OnFrameMetricsAvailableListener {
+
+        private val metrics = FrameMetrics()
+        private val observer = HardwareRendererObserver(this, metrics.timingData, handler, false)
+        private var renderer: HardwareRenderer? = null
+
+        private var frames = 0L
+        private var slowFrames = 0L
+        private var droppedReports = 0L
+        var averageCostNanos = 0L
+            private set
+
+        override fun onViewAttachedToWindow(v: View) {
+            renderer = v.viewRootImpl?.threadedRenderer?.also { it.addObserver(observer) }
+        }
+
+        override fun onViewDetachedFromWindow(v: View) {
+            renderer?.removeObserver(observer)
+            renderer = null
+        }
+
+        override fun onFrameMetricsAvailable(dropCountSinceLastInvocation: Int) {
+            val cost = metrics.getMetric(FrameMetrics.INPUT_HANDLING_DURATION) +
+                    metrics.getMetric(FrameMetrics.ANIMATION_DURATION) +
+                    metrics.getMetric(FrameMetrics.LAYOUT_MEASURE_DURATION) +
+                    metrics.getMetric(FrameMetrics.DRAW_DURATION) +
+                    metrics.getMetric(FrameMetrics.SYNC_DURATION) +
+                    metrics.getMetric(FrameMetrics.COMMAND_ISSUE_DURATION) +
+                    metrics.getMetric(FrameMetrics.SWAP_BUFFERS_DURATION)
+            frames++
+            droppedReports += dropCountSinceLastInvocation
+            if (cost > OVERLAY_FRAME_BUDGET_NS) slowFrames++
+            averageCostNanos += (cost - averageCostNanos) / COST_SMOOTHING
+            updateDegradation()
+        }
+
+        fun reset() {
+            frames = 0
+            slowFrames = 0
+            droppedReports = 0
+            averageCostNanos = 0
+        }
+
+        fun dump(pw: PrintWriter) {
+            pw.println("  $name: frames=$frames slow=$slowFrames dropped=$droppedReports" +
+                    " avgCost=${averageCostNanos / 1000}us attached=${renderer != null}")
+        }
+    }
+
+    companion object {
+        /** An overlay frame should only take a small slice of the game's frame time */
+        const val OVERLAY_FRAME_BUDGET_NS = 4_000_000L
+
+        private const val COST_SMOOTHING = 8
+        private const val FPS_TARGET_RATIO = 0.8f
+        private const val SLOW_FPS_REPORTS_THRESHOLD = 3
+        /** FPS is reported about once a second, so the target follows the last ~10s */
+        private const val TARGET_WINDOW_REPORTS = 10
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.content.Context
+import android.os.BatteryManager
+import io.chaldeaprjkt.gamespace.data.SessionReport
+import io.chaldeaprjkt.gamespace.utils.GameModeUtils
+import kotlin.math.abs
+
+/**
+ * Estimates how much charge and energy a game session draws. The battery
+ * current is integrated on every telemetry tick, so the rate follows the
+ * sampler: fast while a readout is on screen, slow otherwise. The drain is
+ * split by the game mode that was active when it was drawn, and the fuel
+ * gauge's charge counter corrects the session total when it's available.
+ */
+class PowerEstimator(
+    private val context: Context,
+    private val gameModeUtils: GameModeUtils,
+    private val telemetrySampler: TelemetrySampler,
+) {
+
+    private val batteryManager by lazy { context.getSystemService(BatteryManager::class.java)!! }
+
+    private var lastUptime = 0L
+    private var lastCurrentMa = Float.NaN
+    private var chargeCounterStart = 0L
+    private var integratedMah = 0.0
+    private var energyMwh = 0.0
+    private var durationMs = 0L
+
+    /** Charge drawn in every game mode, indexed by the GameManager mode constant */
+    val modeDrainMah = FloatArray(SessionReport.MODE_SLOTS)
+    val modeDurationMs = LongArray(SessionReport.MODE_SLOTS)
+
+    /** Smoothed discharge current in mA, which is also the live drain in mAh per hour */
+    var currentMa = Float.NaN
+        private set
+
+    /** Smoothed power draw in mW */
+    var powerMw = Float.NaN
+        private set
+
+    var isRunning = false
+        private set
+
+    private val sampleListener = TelemetrySampler.Listener { onSample(it) }
+
+    /** Charge drawn so far, from the charge counter when the gauge provides it */
+    val drainMah: Float
+        get() {
+            val counter = readChargeCounter()
+            if (chargeCounterStart > 0 && counter > 0 && counter <= chargeCounterStart) {
+                return (chargeCounterStart - counter) / 1000f
+            }
+            return integratedMah.toFloat()
+        }
+
+    val drainEnergyMwh: Float
+        get() = energyMwh.toFloat()
+
+    val averagePowerMw: Float
+        get() = if (durationMs > 0) (energyMwh * MS_PER_HOUR / durationMs).toFloat() else 0f
+
+    fun start() {
+        if (isRunning) stop()
+        lastUptime = 0L
+        lastCurrentMa = Float.NaN
+        currentMa = Float.NaN
+        powerMw = Float.NaN
+        integratedMah = 0.0
+        energyMwh = 0.0
+        durationMs = 0L
+        modeDrainMah.fill(0f)
+        modeDurationMs.fill(0L)
+        chargeCounterStart = readChargeCounter()
+        telemetrySampler.subscribe(sampleListener, false)
+        isRunning = true
+    }
+
+    fun stop() {
+        if (!isRunning) return
+        isRunning = false
+        telemetrySampler.unsubscribe(sampleListener)
+    }
+
+    private fun onSample(sample: TelemetrySampler.Sample) {
+        // Drawing from the charger says nothing about what the game costs
+        if (sample.isPlugged) {
+            lastUptime = 0L
+            return
+        }
+        val nowMa = readCurrentMa()
+        if (nowMa.isNaN()) return
+        val voltage = sample.batteryVoltageMv / 1000f
+
+        currentMa = if (currentMa.isNaN()) nowMa else currentMa + SMOOTHING * (nowMa - currentMa)
+        if (voltage > 0f) powerMw = currentMa * voltage
+
+        if (lastUptime != 0L && !lastCurrentMa.isNaN()) {
+            val elapsed = sample.uptime - lastUptime
+            // trapezoid between the two readings
+            val mah = (lastCurrentMa + nowMa) / 2.0 * elapsed / MS_PER_HOUR
+            integratedMah += mah
+            if (voltage > 0f) energyMwh += mah * voltage
+            durationMs += elapsed
+            val mode = (gameModeUtils.activeGame?.mode ?: GameModeUtils.defaultPreferredMode)
+                .coerceIn(0, SessionReport.MODE_SLOTS - 1)
+            modeDrainMah[mode] += mah.toFloat()
+            modeDurationMs[mode] += elapsed
+        }
+        lastUptime = sample.uptime
+        lastCurrentMa = nowMa
+    }
+
+    private fun readCurrentMa(): Float {
+        val raw = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW)
+        if (raw == Int.MIN_VALUE || raw == 0) return Float.NaN
+        // The sign convention differs between gauges and a few report mA
+        // instead of µA. A game never draws less than a few mA, so small
+        // magnitudes are taken as mA already.
+        val magnitude = abs(raw)
+        return if (magnitude < MIN_MICROAMPS) magnitude.toFloat() else magnitude / 1000f
+    }
+
+    private fun readChargeCounter(): Long {
+        val value = batteryManager.getLongProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER)
+        return if (value == Long.MIN_VALUE) 0L else value
+    }
+
+    companion object {
+        private const val MS_PER_HOUR = 3_600_000.0
+        private const val SMOOTHING = 0.2f
+        private const val MIN_MICROAMPS = 5_000
+    }
+}
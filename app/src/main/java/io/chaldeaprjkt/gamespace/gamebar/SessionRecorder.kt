@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.content.Context
+import android.content.pm.PackageManager
+import android.os.BatteryManager
+import android.os.SystemClock
+import android.util.Log
+import io.chaldeaprjkt.gamespace.data.PerformanceBaselines
+import io.chaldeaprjkt.gamespace.data.SessionLog
+import io.chaldeaprjkt.gamespace.data.SessionReport
+import io.chaldeaprjkt.gamespace.utils.GameModeUtils
+
+/**
+ * Collects what GameSpace observes while a game is running and turns it
+ * into a [SessionReport] once the session ends.
+ */
+class SessionRecorder(
+    private val context: Context,
+    private val frameRateMonitor: FrameRateMonitor,
+    private val gameModeUtils: GameModeUtils,
+    private val sessionLog: SessionLog,
+    private val telemetrySampler: TelemetrySampler,
+    private val thermalMonitor: ThermalMonitor,
+    private val powerEstimator: PowerEstimator,
+    private val stutterDetector: StutterDetector,
+    private val performanceBaselines: PerformanceBaselines,
+) {
+
+    private val batteryManager by lazy { context.getSystemService(BatteryManager::class.java)!! }
+    private val snapshot = FrameStats.Snapshot()
+    private val fpsHistogram = IntArray(SessionReport.FPS_BUCKETS)
+
+    private var packageName: String? = null
+    private var versionCode = 0L
+    private var startTime = 0L
+    private var startUptime = 0L
+    private var firstFrameUptime = 0L
+    private var batteryStartLevel = 0
+    private var memoryLowWaterMiB = Int.MAX_VALUE
+
+    private val fpsListener = FrameRateMonitor.OnFpsListener {
+        if (firstFrameUptime == 0L) firstFrameUptime = SystemClock.elapsedRealtime()
+        fpsHistogram[SessionReport.fpsBucketOf(it)]++
+    }
+
+    private val memoryListener = TelemetrySampler.Listener {
+        val availMiB = (it.availMem / 1048576L).toInt()
+        if (availMiB > 0 && availMiB < memoryLowWaterMiB) memoryLowWaterMiB = availMiB
+    }
+
+    val isRecording: Boolean
+        get() = packageName != null
+
+    /** Starts a new session, a running one has to be [end]ed first or its report is lost */
+    fun begin(packageName: String) {
+        if (isRecording) {
+            Log.w(TAG, "Dropping the session of ${this.packageName}, it was never ended")
+            end()
+        }
+        this.packageName = packageName
+        versionCode = try {
+            context.packageManager
+                .getPackageInfo(packageName, PackageManager.PackageInfoFlags.of(0))
+                .longVersionCode
+        } catch (e: PackageManager.NameNotFoundException) {
+            0L
+        }
+        startTime = System.currentTimeMillis()
+        startUptime = SystemClock.elapsedRealtime()
+        firstFrameUptime = 0L
+        batteryStartLevel = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
+        memoryLowWaterMiB = Int.MAX_VALUE
+        fpsHistogram.fill(0)
+        frameRateMonitor.addListener(fpsListener)
+        // background subscriber, so it keeps the sampler at its slow pace
+        telemetrySampler.subscribe(memoryListener, false)
+        thermalMonitor.start()
+        powerEstimator.start()
+        stutterDetector.start()
+    }
+
+    /**
+     * Finish the running session and hand its report over, the caller
+     * decides on which thread the report gets persisted.
+     */
+    fun end(): SessionReport? {
+        val game = packageName ?: return null
+        packageName = null
+        // mitigation only switches to battery mode for the last stretch of a session
+        val gameMode = thermalMonitor.unmitigatedMode
+            ?: gameModeUtils.activeGame?.mode ?: GameModeUtils.defaultPreferredMode
+        telemetrySampler.unsubscribe(memoryListener)
+        thermalMonitor.stop()
+        powerEstimator.stop()
+        stutterDetector.stop()
+        frameRateMonitor.removeListener(fpsListener)
+        frameRateMonitor.stats.computeInto(snapshot)
+        return SessionReport(
+            packageName = game,
+            versionCode = versionCode,
+            startTime = startTime,
+            duration = SystemClock.elapsedRealtime() - startUptime,
+            gameMode = gameMode,
+            batteryStartLevel = batteryStartLevel,
+            batteryEndLevel = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY),
+            memoryLowWaterMiB = memoryLowWaterMiB,
+            fpsSamples = snapshot.samples,
+            fpsAverage = snapshot.average,
+            fpsMin = snapshot.min,
+            fpsMax = snapshot.max,
+            fpsLow1Percent = snapshot.low1Percent,
+            fpsLow01Percent = snapshot.low01Percent,
+            fpsVariance = snapshot.variance,
+            fpsHistogram = fpsHistogram.copyOf(),
+            thermalHeadroomStart = thermalMonitor.startHeadroom,
+            thermalHeadroomPeak = thermalMonitor.peakHeadroom,
+            thermalStatusPeak = thermalMonitor.peakStatus,
+            thermalMitigated = thermalMonitor.isMitigated,
+            drainMah = powerEstimator.drainMah,
+            drainEnergyMwh = powerEstimator.drainEnergyMwh,
+            averagePowerMw = powerEstimator.averagePowerMw,
+            modeDrainMah = powerEstimator.modeDrainMah.copyOf(),
+            modeDurationSec = IntArray(SessionReport.MODE_SLOTS) {
+                (powerEstimator.modeDurationMs[it] / 1000).toInt()
+            },
+            stutterCounts = stutterDetector.counts.copyOf(),
+            stutterDurationMs = stutterDetector.totalDurationMs.coerceAtMost(Int.MAX_VALUE.toLong()).toInt(),
+            stutterEvents = stutterDetector.worstEvents.copyOf(),
+            startLatencyMs = if (firstFrameUptime == 0L) 0 else (firstFrameUptime - startUptime).toInt(),
+            configKey = gameModeUtils.interventionFor(game, gameMode),
+        )
+    }
+
+    fun persist(report: SessionReport) {
+        sessionLog.append(report)
+        performanceBaselines.update(report)
+    }
+
+    companion object {
+        private const val TAG = "SessionRecorder"
+    }
+}
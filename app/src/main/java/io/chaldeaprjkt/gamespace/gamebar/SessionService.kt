@@ -61,6 +61,9 @@ class SessionService : Hilt_SessionService() {
     @Inject
     lateinit var callListener: CallListener
 
+    @Inject
+    lateinit var sessionRecorder: SessionRecorder
+
     private val scope = CoroutineScope(Job() + Dispatchers.IO)
 
     private val gameBarConnection = object : ServiceConnection {
@@ -117,6 +120,7 @@ class SessionService : Hilt_SessionService() {
 
     override fun onDestroy() {
         callListener.destroy()
+        endSession()
 
         if (isBarConnected) {
             gameBar.onGameLeave()
@@ -142,6 +146,9 @@ class SessionService : Hilt_SessionService() {
             }
             val app = commandIntent.getStringExtra(EXTRA_PACKAGE_NAME)!!
             session.register(app)
+            // a new game can start before this service is destroyed, keep the previous session
+            endSession()
+            sessionRecorder.begin(app)
             applyGameModeConfig(app)
             gameBar.onGameStart()
             screenUtils.stayAwake = appSettings.stayAwake
@@ -153,6 +160,12 @@ class SessionService : Hilt_SessionService() {
         callListener.init()
     }
 
+    private fun endSession() {
+        sessionRecorder.end()?.let { report ->
+            scope.launch { sessionRecorder.persist(report) }
+        }
+    }
+
     private fun tryStartFromDeath(): Int {
         if (isBarConnected) {
             return START_NOT_STICKY
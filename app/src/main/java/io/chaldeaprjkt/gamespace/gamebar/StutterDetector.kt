@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import io.chaldeaprjkt.gamespace.data.SessionReport
+import io.chaldeaprjkt.gamespace.data.StutterEvent
+import kotlin.math.abs
+
+/**
+ * Watches the game's FPS reports for sustained drops, oscillation between
+ * refresh buckets and freezes. Events are handed to listeners as they end
+ * and the most severe ones are kept for the session report.
+ */
+class StutterDetector(
+    private val frameRateMonitor: FrameRateMonitor,
+    private val thermalMonitor: ThermalMonitor,
+    private val overlayCostMonitor: OverlayCostMonitor,
+) {
+
+    fun interface Listener {
+        fun onStutter(event: StutterEvent)
+    }
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val listeners = mutableListOf<Listener>()
+
+    private var sessionStart = 0L
+    private var lastReport = 0L
+    private var lastNotification = 0L
+    private var reports = 0
+    private var baseline = 0f
+
+    private var dropStart = 0L
+    private var dropReports = 0
+    private var dropMinFps = 0f
+
+    private var freezeStart = 0L
+
+    private val bucketHistory = IntArray(OSCILLATION_WINDOW)
+    private var bucketHead = 0
+    private var oscillationCooldown = 0
+
+    /** Number of events per [StutterEvent] type */
+    val counts = IntArray(StutterEvent.TYPES)
+
+    var totalDurationMs = 0L
+        private set
+
+    /** The most severe events of the session, packed, sorted from worst down */
+    val worstEvents = LongArray(SessionReport.STUTTER_SLOTS)
+
+    var isPanelOpen = false
+
+    var isRunning = false
+        private set
+
+    private val fpsListener = FrameRateMonitor.OnFpsListener { onFps(it) }
+
+    // Without frames TaskFpsCallback stops reporting altogether
+    private val freezeWatchdog = Runnable {
+        if (isRunning && freezeStart == 0L) freezeStart = lastReport
+    }
+
+    fun start() {
+        if (isRunning) stop()
+        sessionStart = SystemClock.uptimeMillis()
+        lastReport = sessionStart
+        reports = 0
+        baseline = 0f
+        dropStart = 0L
+        freezeStart = 0L
+        bucketHistory.fill(-1)
+        bucketHead = 0
+        oscillationCooldown = 0
+        counts.fill(0)
+        totalDurationMs = 0L
+        worstEvents.fill(0L)
+        isPanelOpen = false
+        frameRateMonitor.addListener(fpsListener)
+        isRunning = true
+    }
+
+    fun stop() {
+        if (!isRunning) return
+        // a game that hangs until it is left still gets its freeze
+        if (freezeStart != 0L) {
+            val duration = SystemClock.uptimeMillis() - freezeStart
+            if (duration >= FREEZE_GAP_MS) {
+                emit(StutterEvent.TYPE_FREEZE, freezeStart, duration, freezeSeverity(duration))
+            }
+            freezeStart = 0L
+        }
+        isRunning = false
+        handler.removeCallbacks(freezeWatchdog)
+        frameRateMonitor.removeListener(fpsListener)
+    }
+
+    fun addListener(listener: Listener) {
+        if (!listeners.contains(listener)) listeners.add(listener)
+    }
+
+    fun removeListener(listener: Listener) {
+        listeners.remove(listener)
+    }
+
+    fun noteNotification() {
+        lastNotification = SystemClock.uptimeMillis()
+    }
+
+    private fun onFps(fps: Float) {
+        val now = SystemClock.uptimeMillis()
+        handler.removeCallbacks(freezeWatchdog)
+        handler.postDelayed(freezeWatchdog, FREEZE_GAP_MS)
+
+        if (fps < FROZEN_FPS) {
+            if (freezeStart == 0L) freezeStart = lastReport
+            lastReport = now
+            return
+        }
+        if (freezeStart != 0L) {
+            val duration = now - freezeStart
+            if (duration >= FREEZE_GAP_MS) {
+                emit(StutterEvent.TYPE_FREEZE, freezeStart, duration, freezeSeverity(duration))
+            }
+            freezeStart = 0L
+        }
+        lastReport = now
+
+        reports++
+        if (reports <= WARMUP_REPORTS) {
+            baseline = if (baseline == 0f) fps else baseline + (fps - baseline) / reports
+            return
+        }
+        trackDrop(fps, now)
+        trackOscillation(fps, now)
+    }
+
+    private fun trackDrop(fps: Float, now: Long) {
+        if (fps < baseline * DROP_RATIO) {
+            if (dropStart == 0L) {
+                dropStart = now
+                dropReports = 0
+                dropMinFps = fps
+            }
+            dropReports++
+            if (fps < dropMinFps) dropMinFps = fps
+            return
+        }
+        if (dropStart != 0L && dropReports >= SUSTAINED_REPORTS) {
+            val ratio = dropMinFps / baseline
+            val severity = when {
+                ratio < 0.5f -> 3
+                ratio < 0.65f -> 2
+                else -> 1
+            }
+            emit(StutterEvent.TYPE_FPS_DROP, dropStart, now - dropStart, severity)
+        }
+        dropStart = 0L
+        // the baseline only follows stable stretches, so a drop can't drag it down
+        baseline += BASELINE_SMOOTHING * (fps - baseline)
+    }
+
+    private fun trackOscillation(fps: Float, now: Long) {
+        bucketHistory[bucketHead] = bucketOf(fps)
+        bucketHead = (bucketHead + 1) % OSCILLATION_WINDOW
+        if (oscillationCooldown > 0) {
+            oscillationCooldown--
+            return
+        }
+        var changes = 0
+        var previous = -1
+        for (i in 0 until OSCILLATION_WINDOW) {
+            val bucket = bucketHistory[(bucketHead + i) % OSCILLATION_WINDOW]
+            if (bucket < 0) return
+            if (previous >= 0 && bucket != previous) changes++
+            previous = bucket
+        }
+        if (changes < OSCILLATION_CHANGES) return
+        val severity = when {
+            changes >= 8 -> 3
+            changes >= 6 -> 2
+            else -> 1
+        }
+        emit(StutterEvent.TYPE_OSCILLATION, now - OSCILLATION_WINDOW * REPORT_INTERVAL_MS,
+            OSCILLATION_WINDOW * REPORT_INTERVAL_MS, severity)
+        oscillationCooldown = OSCILLATION_WINDOW
+    }
+
+    private fun emit(type: Int, start: Long, duration: Long, severity: Int) {
+        var flags = 0
+        if (lastNotification != 0L && lastNotification >= start - NOTIFICATION_WINDOW_MS) {
+            flags = flags or StutterEvent.FLAG_NOTIFICATION
+        }
+        if (overlayCostMonitor.isDegraded) flags = flags or StutterEvent.FLAG_OVERLAY_DEGRADED
+        if (isPanelOpen) flags = flags or StutterEvent.FLAG_PANEL_OPEN
+        val event = StutterEvent(
+            type = type,
+            offsetMs = (start - sessionStart).coerceAtLeast(0),
+            durationMs = duration,
+            severity = severity,
+            thermalStatus = thermalMonitor.status,
+            flags = flags,
+        )
+        counts[type]++
+        totalDurationMs += duration
+        keepIfWorse(event)
+        for (i in listeners.indices.reversed()) {
+            listeners[i].onStutter(event)
+        }
+    }
+
+    private fun keepIfWorse(event: StutterEvent) {
+        val packed = event.pack()
+        var slot = worstEvents.size
+        while (slot > 0 && isWorse(packed, worstEvents[slot - 1])) slot--
+        if (slot == worstEvents.size) return
+        for (i in worstEvents.size - 1 downTo slot + 1) worstEvents[i] = worstEvents[i - 1]
+        worstEvents[slot] = packed
+    }
+
+    // severity first, then duration, both straight from the packed bits
+    private fun isWorse(packed: Long, other: Long): Boolean {
+        if (other == 0L) return true
+        val severity = (packed ushr 12) and 0xf
+        val otherSeverity = (other ushr 12) and 0xf
+        if (severity != otherSeverity) return severity > otherSeverity
+        return ((packed ushr 20) and 0xfffff) > ((other ushr 20) and 0xfffff)
+    }
+
+    private fun freezeSeverity(duration: Long) = when {
+        duration >= 6000 -> 3
+        duration >= 3000 -> 2
+        else -> 1
+    }
+
+    private fun bucketOf(fps: Float): Int {
+        var best = 0
+        for (i in REFRESH_BUCKETS.indices) {
+            if (abs(REFRESH_BUCKETS[i] - fps) < abs(REFRESH_BUCKETS[best] - fps)) best = i
+        }
+        return best
+    }
+
+    companion object {
+        private const val REPORT_INTERVAL_MS = 1000L
+        private const val FREEZE_GAP_MS = 2000L
+        private const val FROZEN_FPS = 1f
+        private const val WARMUP_REPORTS = 5
+        private const val DROP_RATIO = 0.75f
+        private const val SUSTAINED_REPORTS = 3
+        private const val BASELINE_SMOOTHING = 0.05f
+        private const val OSCILLATION_WINDOW = 10
+        private const val OSCILLATION_CHANGES = 4
+        private const val NOTIFICATION_WINDOW_MS = 5000L
+
+        private val REFRESH_BUCKETS = floatArrayOf(24f, 30f, 40f, 45f, 60f, 72f, 90f, 120f, 144f)
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.app.ActivityManager
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.BatteryManager
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import io.chaldeaprjkt.gamespace.utils.SystemMetricsReader
+
+/**
+ * One schedule for the system telemetry shown in the overlays. Every
+ * subscriber gets the same, reused [Sample] on the main thread. Sampling
+ * runs fast while something on screen shows it, slowly when only background
+ * subscribers are left and stops when nobody is subscribed.
+ */
+class TelemetrySampler(
+    private val context: Context,
+    private val metricsReader: SystemMetricsReader,
+) {
+
+    /** Latest readings, reused between ticks so subscribers must not keep it */
+    class Sample {
+        var uptime = 0L
+        var availMem = 0L
+        var totalMem = 0L
+        var batteryLevel = 0
+        var batteryVoltageMv = 0
+        var isPlugged = false
+    }
+
+    fun interface Listener {
+        fun onSample(sample: Sample)
+    }
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val activityManager by lazy { context.getSystemService(ActivityManager::class.java)!! }
+    private val memoryInfo = ActivityManager.MemoryInfo()
+    private val memInfo = SystemMetricsReader.MemInfo()
+    private val sample = Sample()
+
+    private val listeners = mutableListOf<Listener>()
+    private val visibleListeners = mutableSetOf<Listener>()
+    private var isBatteryRegistered = false
+
+    private val batteryReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            val level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0)
+            val scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 0)
+            if (scale > 0) sample.batteryLevel = (level.toFloat() / scale * 100).toInt()
+            sample.batteryVoltageMv = intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0)
+            sample.isPlugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0
+        }
+    }
+
+    private val ticker = object : Runnable {
+        override fun run() {
+            sampleNow()
+            handler.postDelayed(this, interval())
+        }
+    }
+
+    val latest: Sample
+        get() = sample
+
+    fun subscribe(listener: Listener, visible: Boolean) {
+        val wasIdle = listeners.isEmpty()
+        if (!listeners.contains(listener)) listeners.add(listener)
+        setVisible(listener, visible)
+        if (wasIdle) start() else listener.onSample(sample)
+    }
+
+    fun unsubscribe(listener: Listener) {
+        listeners.remove(listener)
+        visibleListeners.remove(listener)
+        if (listeners.isEmpty()) stop()
+    }
+
+    /** Visible subscribers speed the schedule up, the change applies right away */
+    fun setVisible(listener: Listener, visible: Boolean) {
+        val changed = if (visible) visibleListeners.add(listener) else visibleListeners.remove(listener)
+        if (changed && listeners.isNotEmpty()) {
+            handler.removeCallbacks(ticker)
+            handler.post(ticker)
+        }
+    }
+
+    private fun start() {
+        if (!isBatteryRegistered) {
+            // the sticky intent fills in the current level straight away
+            context.registerReceiver(batteryReceiver, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+                ?.let { batteryReceiver.onReceive(context, it) }
+            isBatteryRegistered = true
+        }
+        handler.removeCallbacks(ticker)
+        handler.post(ticker)
+    }
+
+    private fun stop() {
+        handler.removeCallbacks(ticker)
+        if (isBatteryRegistered) {
+            context.unregisterReceiver(batteryReceiver)
+            isBatteryRegistered = false
+        }
+    }
+
+    private fun sampleNow() {
+        sample.uptime = SystemClock.uptimeMillis()
+        if (metricsReader.readMemInfo(memInfo)) {
+            sample.availMem = memInfo.availableKb * 1024L
+            sample.totalMem = memInfo.totalKb * 1024L
+        } else {
+            // /proc/meminfo denied, fall back to the binder call
+            activityManager.getMemoryInfo(memoryInfo)
+            sample.availMem = memoryInfo.availMem
+            sample.totalMem = memoryInfo.totalMem
+        }
+        for (i in listeners.indices.reversed()) {
+            listeners[i].onSample(sample)
+        }
+    }
+
+    private fun interval() =
+        if (visibleListeners.isNotEmpty()) VISIBLE_INTERVAL_MS else BACKGROUND_INTERVAL_MS
+
+    companion object {
+        private const val VISIBLE_INTERVAL_MS = 1000L
+        private const val BACKGROUND_INTERVAL_MS = 10_000L
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.app.GameManager
+import android.content.Context
+import android.os.PowerManager
+import android.util.Log
+import io.chaldeaprjkt.gamespace.data.AppSettings
+import io.chaldeaprjkt.gamespace.data.SystemSettings
+import io.chaldeaprjkt.gamespace.data.UserGame
+import io.chaldeaprjkt.gamespace.utils.GameModeUtils
+
+/**
+ * Follows the thermal headroom of a game session and forecasts when the
+ * device is going to throttle. Headroom is polled on the shared telemetry
+ * tick, the trend is a least-squares slope over the last readings. When
+ * enabled, the game is moved to battery mode once throttling is imminent
+ * and back to its own mode when the session stops.
+ */
+class ThermalMonitor(
+    private val context: Context,
+    private val appSettings: AppSettings,
+    private val systemSettings: SystemSettings,
+    private val gameModeUtils: GameModeUtils,
+    private val telemetrySampler: TelemetrySampler,
+) {
+
+    private val powerManager by lazy { context.getSystemService(PowerManager::class.java)!! }
+
+    private val trendTimes = LongArray(TREND_SAMPLES)
+    private val trendValues = FloatArray(TREND_SAMPLES)
+    private var trendHead = 0
+    private var trendSize = 0
+    private var lastPoll = 0L
+
+    /** Latest headroom, 1.0 is where the device starts throttling severely */
+    var headroom = Float.NaN
+        private set
+
+    /** Seconds until [headroom] reaches 1.0 on the current trend, -1 when it isn't rising */
+    var secondsToThrottle = -1L
+        private set
+
+    var status = PowerManager.THERMAL_STATUS_NONE
+        private set
+
+    var startHeadroom = Float.NaN
+        private set
+
+    var peakHeadroom = Float.NaN
+        private set
+
+    var peakStatus = PowerManager.THERMAL_STATUS_NONE
+        private set
+
+    /** Whether the session has been moved to battery mode to stay ahead of throttling */
+    var isMitigated = false
+        private set
+
+    // the game as it was before mitigation, kept after stop() for the session report
+    private var unmitigatedGame: UserGame? = null
+
+    /** Mode the session ran in until it was mitigated, null when it never was */
+    val unmitigatedMode: Int?
+        get() = unmitigatedGame?.mode
+
+    var isRunning = false
+        private set
+
+    private val statusListener = PowerManager.OnThermalStatusChangedListener {
+        status = it
+        if (it > peakStatus) peakStatus = it
+        evaluateMitigation()
+    }
+
+    private val sampleListener = TelemetrySampler.Listener { poll(it.uptime) }
+
+    fun start() {
+        if (isRunning) stop()
+        headroom = Float.NaN
+        startHeadroom = Float.NaN
+        peakHeadroom = Float.NaN
+        secondsToThrottle = -1L
+        trendHead = 0
+        trendSize = 0
+        lastPoll = 0L
+        isMitigated = false
+        unmitigatedGame = null
+        status = powerManager.currentThermalStatus
+        peakStatus = status
+        powerManager.addThermalStatusListener(context.mainExecutor, statusListener)
+        telemetrySampler.subscribe(sampleListener, false)
+        isRunning = true
+    }
+
+    fun stop() {
+        if (!isRunning) return
+        isRunning = false
+        telemetrySampler.unsubscribe(sampleListener)
+        powerManager.removeThermalStatusListener(statusListener)
+        unmitigatedGame?.let { restoreMode(it) }
+    }
+
+    private fun poll(uptime: Long) {
+        if (lastPoll != 0L && uptime - lastPoll < POLL_INTERVAL_MS) return
+        lastPoll = uptime
+        // NaN when unsupported by the HAL or asked for too often
+        val current = powerManager.getThermalHeadroom(0)
+        if (current.isNaN()) return
+
+        headroom = current
+        if (startHeadroom.isNaN()) startHeadroom = current
+        if (peakHeadroom.isNaN() || current > peakHeadroom) peakHeadroom = current
+        trendTimes[trendHead] = uptime
+        trendValues[trendHead] = current
+        trendHead = (trendHead + 1) % TREND_SAMPLES
+        if (trendSize < TREND_SAMPLES) trendSize++
+        secondsToThrottle = forecast()
+        evaluateMitigation()
+    }
+
+    private fun forecast(): Long {
+        if (trendSize < MIN_TREND_SAMPLES) return -1L
+        if (headroom >= THROTTLING_HEADROOM) return 0L
+        val origin = trendTimes[(trendHead - trendSize + TREND_SAMPLES) % TREND_SAMPLES]
+        var sumX = 0.0
+        var sumY = 0.0
+        var sumXY = 0.0
+        var sumXX = 0.0
+        for (i in 0 until trendSize) {
+            val index = (trendHead - trendSize + i + TREND_SAMPLES) % TREND_SAMPLES
+            val x = (trendTimes[index] - origin) / 1000.0
+            val y = trendValues[index].toDouble()
+            sumX += x
+            sumY += y
+            sumXY += x * y
+            sumXX += x * x
+        }
+        val denominator = trendSize * sumXX - sumX * sumX
+        if (denominator <= 0.0) return -1L
+        val slope = (trendSize * sumXY - sumX * sumY) / denominator
+        if (slope <= MIN_RISING_SLOPE) return -1L
+        return ((THROTTLING_HEADROOM - headroom) / slope).toLong()
+    }
+
+    private fun evaluateMitigation() {
+        if (!isRunning || isMitigated || !appSettings.thermalAutoBattery) return
+        val game = gameModeUtils.activeGame ?: return
+        if (game.mode == GameManager.GAME_MODE_BATTERY) return
+        val imminent = secondsToThrottle in 0..MITIGATION_LEAD_SECONDS
+        if (!imminent && status < PowerManager.THERMAL_STATUS_MODERATE) return
+
+        Log.i(TAG, "Throttling expected in ${secondsToThrottle}s (status $status), " +
+                "switching ${game.packageName} to battery mode")
+        unmitigatedGame = game
+        gameModeUtils.setActiveGameMode(systemSettings, GameManager.GAME_MODE_BATTERY, persist = false)
+        isMitigated = true
+    }
+
+    private fun restoreMode(game: UserGame) {
+        val current = gameModeUtils.activeGame ?: return
+        // leave it if the user picked another mode since
+        if (current.packageName != game.packageName ||
+            current.mode != GameManager.GAME_MODE_BATTERY) return
+        gameModeUtils.setActiveGameMode(systemSettings, game.mode, persist = false)
+    }
+
+    companion object {
+        private const val TAG = "ThermalMonitor"
+        private const val POLL_INTERVAL_MS = 5000L
+        private const val TREND_SAMPLES = 24
+        private const val MIN_TREND_SAMPLES = 4
+        private const val THROTTLING_HEADROOM = 1f
+        private const val MIN_RISING_SLOPE = 1e-5
+        private const val MITIGATION_LEAD_SECONDS = 60L
+    }
+}
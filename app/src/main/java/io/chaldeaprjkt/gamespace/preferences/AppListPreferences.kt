@@ -17,7 +17,7 @@ package io.chaldeaprjkt.gamespace.preferences
 
 import android.app.Activity
 import android.content.Context
-import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
 import android.util.AttributeSet
 import androidx.activity.result.ActivityResult
@@ -30,6 +30,12 @@ import io.chaldeaprjkt.gamespace.settings.PerAppSettingsFragment
 import io.chaldeaprjkt.gamespace.utils.GameModeUtils.Companion.describeGameMode
 import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint
 import io.chaldeaprjkt.gamespace.utils.entryPointOf
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 
 class AppListPreferences @JvmOverloads constructor(context: Context, attrs: AttributeSet? = null) :
@@ -44,8 +50,25 @@ class AppListPreferences @JvmOverloads constructor(context: Context, attrs: Attr
         context.entryPointOf<ServiceViewEntryPoint>().gameModeUtils()
     }
 
+    private val appInfoCache by lazy {
+        context.entryPointOf<ServiceViewEntryPoint>().appInfoCache()
+    }
+
+    private val iconLoader by lazy {
+        context.entryPointOf<ServiceViewEntryPoint>().appIconLoader()
+    }
+
+    private val iconSize by lazy {
+        context.resources.getDimensionPixelSize(android.R.dimen.app_icon_size)
+    }
+
     private lateinit var registeredAppClickAction: (String) -> Unit
 
+    private class AppItem(val game: UserGame, val info: PackageInfo, val label: String)
+
+    private var scope: CoroutineScope? = null
+    private var updateJob: Job? = null
+
     init {
         isOrderingAsAdded = false
     }
@@ -60,9 +83,8 @@ class AppListPreferences @JvmOverloads constructor(context: Context, attrs: Attr
         }
     }
 
-    private fun getAppInfo(packageName: String): ApplicationInfo? = try {
-        val flags = PackageManager.ApplicationInfoFlags.of(PackageManager.GET_META_DATA.toLong())
-        context.packageManager.getApplicationInfo(packageName, flags)
+    private fun getPackageInfo(packageName: String): PackageInfo? = try {
+        context.packageManager.getPackageInfo(packageName, PackageManager.PackageInfoFlags.of(0))
     } catch (e: PackageManager.NameNotFoundException) {
         null
     }
@@ -72,23 +94,34 @@ class AppListPreferences @JvmOverloads constructor(context: Context, attrs: Attr
         if (!systemSettings.userGames.isNullOrEmpty()) {
             apps.addAll(systemSettings.userGames)
         }
+        val games = apps.toList()
+        updateJob?.cancel()
+        updateJob = scope?.launch {
+            // a label that isn't cached yet has to be loaded from the app
+            val items = withContext(Dispatchers.IO) {
+                games.mapNotNull { game ->
+                    getPackageInfo(game.packageName)?.let { AppItem(game, it, appInfoCache.label(it)) }
+                }.sortedBy { it.label.lowercase() }.also { appInfoCache.flush() }
+            }
+            showApps(items)
+        }
+    }
+
+    private fun showApps(items: List<AppItem>) {
+        for (i in 0 until preferenceCount) iconLoader.cancel(getPreference(i))
         removeAll()
         addPreference(makeAddPref)
-        apps.filter { getAppInfo(it.packageName) != null }
-            .map {
-                val info = getAppInfo(it.packageName)
-                Preference(context).apply {
-                    key = it.packageName
-                    title = info?.loadLabel(context.packageManager)
-                    summary = context.describeGameMode(it.mode)
-                    icon = info?.loadIcon(context.packageManager)
-                    layoutResource = R.layout.library_item
-                    isPersistent = false
-                    onPreferenceClickListener = this@AppListPreferences
-                }
-            }
-            .sortedBy { it.title.toString().lowercase() }
-            .forEach(::addPreference)
+        items.forEach { item ->
+            addPreference(Preference(context).apply {
+                key = item.game.packageName
+                title = item.label
+                summary = context.describeGameMode(item.game.mode)
+                iconLoader.load(this, item.info, iconSize) { icon = it }
+                layoutResource = R.layout.library_item
+                isPersistent = false
+                onPreferenceClickListener = this@AppListPreferences
+            })
+        }
     }
 
     private fun registerApp(packageName: String) {
@@ -109,9 +142,17 @@ class AppListPreferences @JvmOverloads constructor(context: Context, attrs: Attr
 
     override fun onAttached() {
         super.onAttached()
+        scope = CoroutineScope(Job() + Dispatchers.Main)
         updateAppList()
     }
 
+    override fun onDetached() {
+        scope?.cancel()
+        scope = null
+        updateJob = null
+        super.onDetached()
+    }
+
     override fun onPreferenceClick(preference: Preference): Boolean {
         if (preference != makeAddPref && ::registeredAppClickAction.isInitialized) {
             registeredAppClickAction(preference.key)
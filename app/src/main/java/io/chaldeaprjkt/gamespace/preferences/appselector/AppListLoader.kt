@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.preferences.appselector
+
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import io.chaldeaprjkt.gamespace.data.AppInfoCache
+import io.chaldeaprjkt.gamespace.preferences.appselector.adapter.AppEntry
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+
+/**
+ * Loads the apps the selector offers. Labels live in the other apps'
+ * resources and are the slow part, so each is resolved exactly once and
+ * the list is emitted sorted after every [PAGE_SIZE] labels, letting the
+ * first apps show up long before the last label is loaded.
+ */
+class AppListLoader(
+    private val pm: PackageManager,
+    private val appInfoCache: AppInfoCache,
+    private val excluded: Set<String>,
+) {
+
+    fun load(): Flow<List<AppEntry>> = flow {
+        val apps = pm.getInstalledPackages(PackageManager.PackageInfoFlags.of(0)).filter {
+            val info = it.applicationInfo ?: return@filter false
+            info.flags and ApplicationInfo.FLAG_SYSTEM == 0 && it.packageName !in excluded
+        }
+        var sorted = emptyList<AppEntry>()
+        var nextId = 0L
+        apps.chunked(PAGE_SIZE).forEach { page ->
+            val entries = page.map { AppEntry(nextId++, appInfoCache.label(it), it) }
+                .sortedBy { it.sortKey }
+            sorted = merge(sorted, entries)
+            emit(sorted)
+        }
+        if (apps.isEmpty()) emit(sorted)
+        appInfoCache.flush()
+    }.flowOn(Dispatchers.IO)
+
+    // both sides are sorted already, so this is linear
+    private fun merge(a: List<AppEntry>, b: List<AppEntry>): List<AppEntry> {
+        val out = ArrayList<AppEntry>(a.size + b.size)
+        var i = 0
+        var j = 0
+        while (i < a.size && j < b.size) {
+            out.add(if (a[i].sortKey <= b[j].sortKey) a[i++] else b[j++])
+        }
+        while (i < a.size) out.add(a[i++])
+        while (j < b.size) out.add(b[j++])
+        return out
+    }
+
+    companion object {
+        private const val PAGE_SIZE = 40
+    }
+}
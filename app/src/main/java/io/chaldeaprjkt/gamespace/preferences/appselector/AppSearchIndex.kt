@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.preferences.appselector
+
+import io.chaldeaprjkt.gamespace.preferences.appselector.adapter.AppEntry
+import java.text.Normalizer
+import java.util.Locale
+
+/**
+ * Plain substring search over the apps of one selector session. Labels and
+ * package names are normalized once when the entries are created, so a
+ * query is only a scan over precomputed strings. While the user keeps
+ * typing, every query extends the previous one and only the previous
+ * matches are scanned again.
+ */
+class AppSearchIndex(private val apps: List<AppEntry>) {
+
+    private var lastQuery = ""
+    private var lastMatches = apps
+
+    @Synchronized
+    fun search(text: String?): List<AppEntry> {
+        val query = normalize(text.orEmpty().trim())
+        if (query.isEmpty()) return apps
+        val candidates = if (lastQuery.isNotEmpty() && query.startsWith(lastQuery)) lastMatches else apps
+        val matches = candidates.filter { it.searchKey.contains(query) }
+        lastQuery = query
+        lastMatches = matches
+        return matches
+    }
+
+    companion object {
+        /** Separates label and package, so a query can't match across both */
+        private const val KEY_SEPARATOR = '\n'
+
+        fun keyOf(label: String, packageName: String) =
+            normalize(label) + KEY_SEPARATOR + normalize(packageName)
+
+        /** Lowercase with accents dropped, so "pokemon" finds "Pokémon" */
+        fun normalize(text: String): String {
+            val decomposed = Normalizer.normalize(text, Normalizer.Form.NFD)
+            val out = StringBuilder(decomposed.length)
+            for (c in decomposed) {
+                if (Character.getType(c) != Character.NON_SPACING_MARK.toInt()) out.append(c)
+            }
+            return out.toString().lowercase(Locale.ROOT)
+        }
+    }
+}
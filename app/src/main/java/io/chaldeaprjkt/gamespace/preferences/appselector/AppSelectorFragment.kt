@@ -17,8 +17,6 @@ package io.chaldeaprjkt.gamespace.preferences.appselector
 
 import android.app.Activity
 import android.content.Intent
-import android.content.pm.ApplicationInfo
-import android.content.pm.PackageManager
 import android.os.Bundle
 import android.view.LayoutInflater
 import android.view.Menu
@@ -29,6 +27,7 @@ import android.view.ViewGroup
 import android.widget.SearchView
 import androidx.core.view.MenuProvider
 import androidx.core.view.ViewCompat
+import androidx.core.view.isVisible
 import androidx.fragment.app.Fragment
 import androidx.lifecycle.Lifecycle
 import androidx.recyclerview.widget.LinearLayoutManager
@@ -36,9 +35,16 @@ import androidx.recyclerview.widget.RecyclerView
 import com.google.android.material.appbar.AppBarLayout
 import dagger.hilt.android.AndroidEntryPoint
 import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.data.AppInfoCache
 import io.chaldeaprjkt.gamespace.data.SystemSettings
 import io.chaldeaprjkt.gamespace.preferences.AppListPreferences
 import io.chaldeaprjkt.gamespace.preferences.appselector.adapter.AppsAdapter
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import javax.inject.Inject
 
 @AndroidEntryPoint(Fragment::class)
@@ -47,9 +53,14 @@ class AppSelectorFragment : Hilt_AppSelectorFragment(), SearchView.OnQueryTextLi
     @Inject
     lateinit var settings: SystemSettings
 
+    @Inject
+    lateinit var appInfoCache: AppInfoCache
+
     private var appListView: RecyclerView? = null
     private var appsAdapter: AppsAdapter? = null
     private var appBarLayout: AppBarLayout? = null
+    private var scope: CoroutineScope? = null
+    private var searchJob: Job? = null
 
     private val menuProvider = object : MenuProvider {
         override fun onCreateMenu(menu: Menu, menuInflater: MenuInflater) {
@@ -78,23 +89,19 @@ class AppSelectorFragment : Hilt_AppSelectorFragment(), SearchView.OnQueryTextLi
         super.onViewCreated(view, savedInstanceState)
         activity?.addMenuProvider(menuProvider, viewLifecycleOwner, Lifecycle.State.RESUMED)
         view.findViewById<RecyclerView>(R.id.app_list)?.apply {
-            setupAppListView(this)
+            setupAppListView(this, view.findViewById<View>(R.id.app_list_loading))
         }
     }
 
-    private fun setupAppListView(view: RecyclerView) {
-        appListView = view
-        val flags = PackageManager.ApplicationInfoFlags.of(PackageManager.GET_META_DATA.toLong())
-        val apps = view.context.packageManager
-            .getInstalledApplications(flags)
-            .filter {
-                it.packageName != context?.packageName &&
-                        it.flags and ApplicationInfo.FLAG_SYSTEM == 0 &&
-                        !settings.userGames.any { t -> t.packageName == it.packageName }
-            }
-            .sortedBy { it.loadLabel(view.context.packageManager).toString().lowercase() }
+    override fun onDestroyView() {
+        scope?.cancel()
+        scope = null
+        super.onDestroyView()
+    }
 
-        appsAdapter = AppsAdapter(view.context.packageManager, apps)
+    private fun setupAppListView(view: RecyclerView, loading: View?) {
+        appListView = view
+        appsAdapter = AppsAdapter()
         view.adapter = appsAdapter
         view.layoutManager = LinearLayoutManager(view.context)
         appsAdapter?.onItemClick {
@@ -103,12 +110,29 @@ class AppSelectorFragment : Hilt_AppSelectorFragment(), SearchView.OnQueryTextLi
             })
             activity?.finish()
         }
+
+        val excluded = settings.userGames.map { it.packageName }.toMutableSet()
+        context?.packageName?.let { excluded.add(it) }
+        val loader = AppListLoader(view.context.packageManager, appInfoCache, excluded)
+        scope = CoroutineScope(Job() + Dispatchers.Main).apply {
+            launch {
+                loader.load().collect {
+                    appsAdapter?.submitApps(it)
+                    if (it.isNotEmpty()) loading?.isVisible = false
+                }
+                loading?.isVisible = false
+            }
+        }
     }
 
     override fun onQueryTextSubmit(query: String?) = false
 
     override fun onQueryTextChange(newText: String?): Boolean {
-        appsAdapter?.filterWith(newText)
+        searchJob?.cancel()
+        searchJob = scope?.launch {
+            delay(SEARCH_DEBOUNCE_MS)
+            appsAdapter?.filterWith(newText)
+        }
         return false
     }
 
@@ -123,4 +147,8 @@ class AppSelectorFragment : Hilt_AppSelectorFragment(), SearchView.OnQueryTextLi
         appListView?.let { ViewCompat.setNestedScrollingEnabled(it, true) }
         return true
     }
+
+    companion object {
+        private const val SEARCH_DEBOUNCE_MS = 150L
+    }
 }
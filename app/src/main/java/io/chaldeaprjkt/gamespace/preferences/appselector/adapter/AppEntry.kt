@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.preferences.appselector.adapter
+
+import android.content.pm.PackageInfo
+import io.chaldeaprjkt.gamespace.preferences.appselector.AppSearchIndex
+
+/**
+ * Immutable row of the app selector. Everything diffing, sorting and
+ * searching look at is resolved once when the row is created, so none of
+ * them reach PackageManager.
+ */
+class AppEntry(
+    /** Unique within one selector session, used as the stable item id */
+    val id: Long,
+    val label: String,
+    /** Handle for [io.chaldeaprjkt.gamespace.data.AppInfoCache.icon], never compared */
+    val icon: PackageInfo,
+) {
+    val packageName: String = icon.packageName
+
+    /** Changes when the app is updated, and with it possibly the icon */
+    val version: Long = icon.lastUpdateTime
+
+    val sortKey = label.lowercase()
+
+    val searchKey = AppSearchIndex.keyOf(label, packageName)
+}
@@ -15,25 +15,43 @@
  */
 package io.chaldeaprjkt.gamespace.preferences.appselector.adapter
 
-import android.content.pm.ApplicationInfo
-import android.content.pm.PackageManager
 import android.view.LayoutInflater
 import android.view.ViewGroup
+import androidx.recyclerview.widget.AdapterListUpdateCallback
+import androidx.recyclerview.widget.AsyncDifferConfig
+import androidx.recyclerview.widget.AsyncListDiffer
 import androidx.recyclerview.widget.DiffUtil
-import androidx.recyclerview.widget.ListAdapter
+import androidx.recyclerview.widget.RecyclerView
 import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.preferences.appselector.AppSearchIndex
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.util.concurrent.Executors
 
-class AppsAdapter(private val pm: PackageManager, private val apps: List<ApplicationInfo>) :
-    ListAdapter<ApplicationInfo, AppsItemViewHolder>(DiffCallback(pm)) {
+class AppsAdapter : RecyclerView.Adapter<AppsItemViewHolder>() {
 
-    private lateinit var onClick: (ApplicationInfo) -> Unit
+    private lateinit var onClick: (AppEntry) -> Unit
+    private var apps = emptyList<AppEntry>()
+    private var index = AppSearchIndex(apps)
+    private var filter: String? = null
+
+    private val differ = AsyncListDiffer(
+        AdapterListUpdateCallback(this),
+        AsyncDifferConfig.Builder(DiffCallback())
+            .setBackgroundThreadExecutor(diffExecutor)
+            .build()
+    )
 
     init {
-        submitList(apps)
+        setHasStableIds(true)
     }
 
     override fun getItemCount(): Int {
-        return currentList.size
+        return differ.currentList.size
+    }
+
+    override fun getItemId(position: Int): Long {
+        return differ.currentList[position].id
     }
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): AppsItemViewHolder {
@@ -44,30 +62,46 @@ class AppsAdapter(private val pm: PackageManager, private val apps: List<Applica
     }
 
     override fun onBindViewHolder(holder: AppsItemViewHolder, position: Int) {
-        holder.bind(currentList[position]) {
+        holder.bind(differ.currentList[position]) {
             if (::onClick.isInitialized) {
                 onClick.invoke(it)
             }
         }
     }
 
-    fun onItemClick(action: (ApplicationInfo) -> Unit) {
+    override fun onViewRecycled(holder: AppsItemViewHolder) {
+        holder.unbind()
+    }
+
+    fun onItemClick(action: (AppEntry) -> Unit) {
         onClick = action
     }
 
-    fun filterWith(text: String?) {
-        val rText = ".*${text}.*".toRegex(RegexOption.IGNORE_CASE)
-        apps.filter { it.loadLabel(pm).contains(rText) }
-            .takeIf { it.isNotEmpty() }
-            ?.run(::submitList) ?: submitList(apps)
+    /** Replaces the full list, e.g. with the next page of loaded apps */
+    suspend fun submitApps(list: List<AppEntry>) {
+        apps = list
+        index = AppSearchIndex(list)
+        filterWith(filter)
     }
 
-    private class DiffCallback(private val pm: PackageManager) :
-        DiffUtil.ItemCallback<ApplicationInfo>() {
-        override fun areItemsTheSame(oldItem: ApplicationInfo, newItem: ApplicationInfo) =
-            oldItem.loadLabel(pm) == newItem.loadLabel(pm)
+    /** Searches off the main thread, the differ then diffs on [diffExecutor] */
+    suspend fun filterWith(text: String?) {
+        filter = text
+        val index = index
+        val matches = withContext(Dispatchers.Default) { index.search(text) }
+        if (index === this.index && text == filter) differ.submitList(matches.ifEmpty { apps })
+    }
+
+    private class DiffCallback : DiffUtil.ItemCallback<AppEntry>() {
+        override fun areItemsTheSame(oldItem: AppEntry, newItem: AppEntry) =
+            oldItem.id == newItem.id
+
+        override fun areContentsTheSame(oldItem: AppEntry, newItem: AppEntry) =
+            oldItem.label == newItem.label && oldItem.version == newItem.version
+    }
 
-        override fun areContentsTheSame(oldItem: ApplicationInfo, newItem: ApplicationInfo) =
-            oldItem.packageName == newItem.packageName
+    companion object {
+        // one selector at a time, a single thread keeps its diffs in order
+        private val diffExecutor by lazy { Executors.newSingleThreadExecutor() }
     }
 }
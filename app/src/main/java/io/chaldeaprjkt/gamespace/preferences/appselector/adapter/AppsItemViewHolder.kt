@@ -15,23 +15,33 @@
  */
 package io.chaldeaprjkt.gamespace.preferences.appselector.adapter
 
-import android.content.pm.ApplicationInfo
 import android.view.View
 import android.view.ViewGroup
 import android.widget.ImageView
 import android.widget.TextView
 import androidx.recyclerview.widget.RecyclerView
 import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint
+import io.chaldeaprjkt.gamespace.utils.entryPointOf
 
 class AppsItemViewHolder(private val v: View) : RecyclerView.ViewHolder(v) {
-    private val pm by lazy { v.context.packageManager }
+    private val iconLoader by lazy {
+        v.context.entryPointOf<ServiceViewEntryPoint>().appIconLoader()
+    }
 
-    fun bind(app: ApplicationInfo, onClick: (ApplicationInfo) -> Unit) {
-        v.findViewById<TextView>(R.id.app_name)?.text = app.loadLabel(pm)
+    fun bind(app: AppEntry, onClick: (AppEntry) -> Unit) {
+        v.findViewById<TextView>(R.id.app_name)?.text = app.label
         v.findViewById<TextView>(R.id.app_summary)?.text = app.packageName
-        v.findViewById<ImageView>(R.id.app_icon)?.setImageDrawable(app.loadIcon(pm))
+        v.findViewById<ImageView>(R.id.app_icon)?.let {
+            iconLoader.load(it, app.icon, it.layoutParams.width)
+        }
         v.findViewById<ViewGroup>(R.id.app_item)?.setOnClickListener {
             onClick.invoke(app)
         }
     }
+
+    /** Drops a pending icon, the holder is about to show another app */
+    fun unbind() {
+        v.findViewById<ImageView>(R.id.app_icon)?.let { iconLoader.cancel(it) }
+    }
 }
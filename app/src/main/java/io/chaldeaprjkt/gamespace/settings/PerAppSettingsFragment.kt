@@ -27,10 +27,20 @@ import androidx.preference.PreferenceFragmentCompat
 import androidx.preference.SwitchPreferenceCompat
 import dagger.hilt.android.AndroidEntryPoint
 import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.data.AppIconLoader
+import io.chaldeaprjkt.gamespace.data.AppInfoCache
 import io.chaldeaprjkt.gamespace.data.GameConfig
+import io.chaldeaprjkt.gamespace.data.PerformanceBaselines
+import io.chaldeaprjkt.gamespace.data.PerformanceComparison
 import io.chaldeaprjkt.gamespace.data.SystemSettings
 import io.chaldeaprjkt.gamespace.data.UserGame
 import io.chaldeaprjkt.gamespace.utils.GameModeUtils
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import javax.inject.Inject
 
 @AndroidEntryPoint(PreferenceFragmentCompat::class)
@@ -43,10 +53,20 @@ class PerAppSettingsFragment : Hilt_PerAppSettingsFragment(),
     @Inject
     lateinit var gameModeUtils: GameModeUtils
 
+    @Inject
+    lateinit var performanceBaselines: PerformanceBaselines
+
+    @Inject
+    lateinit var appInfoCache: AppInfoCache
+
+    @Inject
+    lateinit var iconLoader: AppIconLoader
+
+    private var scope: CoroutineScope? = null
+
     private val currentGame by lazy {
         activity?.intent?.getStringExtra(PerAppSettingsActivity.EXTRA_PACKAGE)?.let {
-            val flags = PackageManager.ApplicationInfoFlags.of(0)
-            context?.packageManager?.getApplicationInfo(it, flags)
+            context?.packageManager?.getPackageInfo(it, PackageManager.PackageInfoFlags.of(0))
         }
     }
 
@@ -66,8 +86,10 @@ class PerAppSettingsFragment : Hilt_PerAppSettingsFragment(),
         super.onViewCreated(view, savedInstanceState)
         findPreference<Preference>("headers")?.apply {
             layoutResource = R.layout.per_app_header
-            icon = currentGame?.loadIcon(context.packageManager)
-            title = context.packageManager?.let { currentGame?.loadLabel(it) }
+            currentGame?.let { game ->
+                val size = resources.getDimensionPixelSize(R.dimen.per_app_header_icon_size)
+                iconLoader.load(this, game, size) { icon = it }
+            }
         }
         findPreference<ListPreference>(PREF_PREFERRED_MODE)?.apply {
             currentConfig?.mode?.let { value = it.toString() }
@@ -89,10 +111,6 @@ class PerAppSettingsFragment : Hilt_PerAppSettingsFragment(),
 
         }
         findPreference<Preference>(PREF_UNREGISTER)?.apply {
-            summary = context.getString(
-                R.string.per_app_unregister,
-                currentGame?.loadLabel(context.packageManager)
-            )
             setOnPreferenceClickListener {
                 activity?.setResult(Activity.RESULT_OK, Intent().apply {
                     putExtra(PREF_UNREGISTER, currentGame?.packageName)
@@ -101,6 +119,65 @@ class PerAppSettingsFragment : Hilt_PerAppSettingsFragment(),
                 true
             }
         }
+        scope = CoroutineScope(Job() + Dispatchers.Main).apply {
+            launch { loadGameInfo() }
+        }
+    }
+
+    override fun onDestroyView() {
+        findPreference<Preference>("headers")?.let { iconLoader.cancel(it) }
+        scope?.cancel()
+        scope = null
+        super.onDestroyView()
+    }
+
+    // A label that isn't cached yet is loaded from the app's resources and
+    // the baselines are parsed from preferences, neither belongs on the main thread
+    private suspend fun loadGameInfo() {
+        val game = currentGame
+        val (label, comparison) = withContext(Dispatchers.IO) {
+            game?.let { appInfoCache.label(it) } to
+                    game?.packageName?.let { performanceBaselines.compare(it) }
+        }
+        if (label != null) {
+            findPreference<Preference>("headers")?.title = label
+            findPreference<Preference>(PREF_UNREGISTER)?.summary =
+                getString(R.string.per_app_unregister, label)
+        }
+        findPreference<Preference>(PREF_PERFORMANCE)?.let { updatePerformance(it, comparison) }
+    }
+
+    private fun updatePerformance(preference: Preference, comparison: PerformanceComparison?) {
+        if (comparison == null) {
+            preference.summary = getString(R.string.per_app_performance_empty)
+            return
+        }
+        val current = comparison.current
+        val overview = getString(
+            R.string.per_app_performance_summary,
+            current.fpsAverage, current.fpsLow1Percent, current.drainPerHourMah, current.sessions
+        )
+        val previous = comparison.previous
+        if (previous == null) {
+            preference.summary = overview
+            return
+        }
+        val fps = comparison.fpsChange * 100
+        val low = comparison.fpsLow1Change * 100
+        val drain = comparison.drainChange * 100
+        val start = comparison.startLatencyChangeMs / 1000
+        val change = if (comparison.versionChanged) {
+            getString(
+                R.string.per_app_performance_since_version,
+                previous.versionCode, fps, low, drain, start
+            )
+        } else {
+            getString(R.string.per_app_performance_since_config, fps, low, drain, start)
+        }
+        if (comparison.isRegression) {
+            preference.setTitle(R.string.per_app_performance_regression_title)
+        }
+        preference.summary = "$overview\n$change"
     }
 
     override fun onPreferenceChange(preference: Preference, newValue: Any?): Boolean {
@@ -126,5 +203,6 @@ class PerAppSettingsFragment : Hilt_PerAppSettingsFragment(),
         const val PREF_PREFERRED_MODE = "per_app_preferred_mode"
         const val PREF_USE_ANGLE = "per_app_use_angle"
         const val PREF_UNREGISTER = "per_app_unregister"
+        const val PREF_PERFORMANCE = "per_app_performance"
     }
 }
@@ -57,10 +57,18 @@ class GameModeUtils @Inject constructor(private val context: Context) {
         )
     }
 
-    fun setActiveGameMode(systemSettings: SystemSettings, mode: Int) {
+    /**
+     * Switch the running game to [mode]. Automatic switches pass [persist] as
+     * false so the user's preferred mode for the game stays untouched.
+     */
+    fun setActiveGameMode(systemSettings: SystemSettings, mode: Int, persist: Boolean = true) {
         val packageName = activeGame?.packageName ?: return
         manager?.setGameMode(packageName, mode)
-        activeGame = setGameModeFor(packageName, systemSettings, mode)
+        activeGame = if (persist) {
+            setGameModeFor(packageName, systemSettings, mode)
+        } else {
+            UserGame(packageName, mode)
+        }
     }
 
     fun setGameModeFor(packageName: String, systemSettings: SystemSettings, mode: Int): UserGame {
@@ -102,6 +110,13 @@ class GameModeUtils @Inject constructor(private val context: Context) {
             ?.contains("useAngle=true")
     } ?: false
 
+    /** The intervention config GameManager applies to [packageName] in [mode], if any */
+    fun interventionFor(packageName: String, mode: Int): String =
+        DeviceConfig.getString(DeviceConfig.NAMESPACE_GAME_OVERLAY, packageName, null)
+            ?.split(":")
+            ?.firstOrNull { it.split(",").contains("mode=$mode") }
+            ?: ""
+
     companion object {
         const val defaultPreferredMode = GameManager.GAME_MODE_STANDARD
         const val ACTION_ANGLE_FOR_ANDROID = "android.app.action.ANGLE_FOR_ANDROID"
@@ -30,7 +30,10 @@ import android.os.RemoteException
 import android.os.ServiceManager
 import android.os.UserHandle
 import android.util.Log
+import android.view.SurfaceControl
+import android.view.View
 import android.view.WindowManager
+import androidx.core.view.doOnPreDraw
 import com.android.internal.statusbar.IStatusBarService
 import com.android.internal.util.ScreenshotHelper
 import com.android.systemui.screenrecord.IRemoteRecording
@@ -45,6 +48,10 @@ class ScreenUtils @Inject constructor(private val context: Context) {
     private var isRecorderBound = false
     private var remoteRecording: IRemoteRecording? = null
     private var wakelock: PowerManager.WakeLock? = null
+    private val handler by lazy { Handler(Looper.getMainLooper()) }
+    private val screenshotHelper by lazy { ScreenshotHelper(context) }
+    private val pendingScreenshots = ArrayDeque<((Uri?) -> Unit)?>()
+    private var isScreenshotInFlight = false
     private val recorderConnection = object : ServiceConnection {
         override fun onServiceConnected(name: ComponentName?, service: IBinder?) {
             try {
@@ -96,12 +103,60 @@ class ScreenUtils @Inject constructor(private val context: Context) {
         }
     }
 
+    /**
+     * Requests are queued and taken one after another, so repeated calls
+     * while a screenshot is still being processed are not dropped.
+     */
     fun takeScreenshot(onComplete: ((Uri?) -> Unit)? = null) {
-        val handler = Handler(Looper.getMainLooper())
-        ScreenshotHelper(context).takeScreenshot(
-            WindowManager.TAKE_SCREENSHOT_FULLSCREEN,
-            WindowManager.ScreenshotSource.SCREENSHOT_GLOBAL_ACTIONS, handler
-        ) { handler.post { onComplete?.invoke(it) } }
+        pendingScreenshots.addLast(onComplete)
+        if (!isScreenshotInFlight) {
+            takeNextScreenshot()
+        }
+    }
+
+    private fun takeNextScreenshot() {
+        if (pendingScreenshots.isEmpty()) {
+            isScreenshotInFlight = false
+            return
+        }
+        val onComplete = pendingScreenshots.removeFirst()
+        isScreenshotInFlight = true
+        try {
+            screenshotHelper.takeScreenshot(
+                WindowManager.TAKE_SCREENSHOT_FULLSCREEN,
+                WindowManager.ScreenshotSource.SCREENSHOT_GLOBAL_ACTIONS, handler
+            ) {
+                handler.post {
+                    onComplete?.invoke(it)
+                    takeNextScreenshot()
+                }
+            }
+        } catch (e: Exception) {
+            Log.e("GameSpace:ScreenUtils", "Failed to take screenshot", e)
+            onComplete?.invoke(null)
+            takeNextScreenshot()
+        }
+    }
+
+    /**
+     * Keep the window of the given overlay view out of screenshots by flagging
+     * its surface layer, so it doesn't have to be hidden while capturing.
+     */
+    fun excludeFromScreenshot(view: View) {
+        view.addOnAttachStateChangeListener(object : View.OnAttachStateChangeListener {
+            override fun onViewAttachedToWindow(v: View) {
+                // the window surface only exists once the first traversal has run
+                v.doOnPreDraw {
+                    it.viewRootImpl?.surfaceControl?.takeIf { sc -> sc.isValid }?.let { sc ->
+                        SurfaceControl.Transaction()
+                            .setSkipScreenshot(sc, true)
+                            .apply()
+                    }
+                }
+            }
+
+            override fun onViewDetachedFromWindow(v: View) {}
+        })
     }
 
     var stayAwake = false
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.utils
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Lock-free bounded ring buffer for exactly one producer thread and one
+ * consumer thread. Each side only writes its own index, so publishing an
+ * item is an array store followed by an ordered index store.
+ */
+class SpscQueue<T : Any>(capacity: Int) {
+
+    private val mask = Integer.highestOneBit((capacity - 1).coerceAtLeast(1)) * 2 - 1
+    private val items = AtomicReferenceArray<T?>(mask + 1)
+
+    // next slot to read, written by the consumer only
+    private val head = AtomicLong()
+    // next slot to write, written by the producer only
+    private val tail = AtomicLong()
+
+    val capacity: Int
+        get() = mask + 1
+
+    val isEmpty: Boolean
+        get() = head.get() == tail.get()
+
+    /** Producer side. Returns false and drops [item] if the queue is full. */
+    fun offer(item: T): Boolean {
+        val t = tail.get()
+        if (t - head.get() > mask) return false
+        items.lazySet((t and mask.toLong()).toInt(), item)
+        tail.lazySet(t + 1)
+        return true
+    }
+
+    /** Consumer side */
+    fun poll(): T? {
+        val h = head.get()
+        if (h == tail.get()) return null
+        val index = (h and mask.toLong()).toInt()
+        val item = items.get(index)
+        items.lazySet(index, null)
+        head.lazySet(h + 1)
+        return item
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.utils
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Reads procfs and sysfs metrics without allocating per read. Every node is
+ * opened once, re-read from offset 0 into its own direct buffer and parsed
+ * in place. Nodes that can't be opened are remembered as missing and never
+ * retried, so a denied path costs nothing after the first attempt.
+ *
+ * Paths are resolved against [root] so the parsers can run against a fake
+ * tree on any Linux box. Only plain java.io/nio is used here for that reason.
+ */
+class SystemMetricsReader(private val root: File = File("/")) {
+
+    class MemInfo {
+        var totalKb = 0L
+        var freeKb = 0L
+        var availableKb = 0L
+        var cachedKb = 0L
+        var swapTotalKb = 0L
+        var swapFreeKb = 0L
+    }
+
+    /** Cumulative jiffies per core, index [coreCount] holds the aggregate line */
+    class CpuTimes(val coreCount: Int) {
+        val total = LongArray(coreCount + 1)
+        val idle = LongArray(coreCount + 1)
+        /** Cores missing from /proc/stat are offline and stay false */
+        val online = BooleanArray(coreCount + 1)
+    }
+
+    private class Node(val file: File, capacity: Int) {
+        val buffer: ByteBuffer = ByteBuffer.allocateDirect(capacity)
+        private var channel: FileChannel? = null
+        private var isMissing = false
+
+        /** Fills [buffer] from the start of the file, returns the length or -1 */
+        fun read(): Int {
+            if (isMissing) return -1
+            val ch = channel ?: try {
+                RandomAccessFile(file, "r").channel.also { channel = it }
+            } catch (e: IOException) {
+                isMissing = true
+                return -1
+            } catch (e: SecurityException) {
+                isMissing = true
+                return -1
+            }
+            buffer.clear()
+            try {
+                var position = 0L
+                while (buffer.hasRemaining()) {
+                    val read = ch.read(buffer, position)
+                    if (read <= 0) break
+                    position += read
+                }
+            } catch (e: IOException) {
+                buffer.clear().limit(0)
+                return -1
+            }
+            buffer.flip()
+            return buffer.limit()
+        }
+
+        fun close() {
+            try {
+                channel?.close()
+            } catch (_: IOException) {
+            }
+            channel = null
+        }
+    }
+
+    private val nodes = mutableMapOf<String, Node>()
+    private val thermalNodes = mutableMapOf<Int, Node>()
+
+    private val memInfoNode = node("proc/meminfo", 4096)
+    private val statNode = node("proc/stat", 16384)
+    private val loadAvgNode = node("proc/loadavg", 128)
+
+    /** Position right after the last number parsed by [parseLong] */
+    private var cursor = 0
+
+    /** Number of possible cores, taken from the sysfs cpu directory once */
+    val coreCount: Int = File(root, "sys/devices/system/cpu").list()
+        ?.count { CPU_DIR.matches(it) }
+        ?.coerceAtLeast(1)
+        ?: Runtime.getRuntime().availableProcessors()
+
+    /** First core of every cpufreq policy, i.e. one entry per cluster */
+    val clusterFirstCores: IntArray = File(root, "sys/devices/system/cpu/cpufreq").list()
+        ?.mapNotNull { it.removePrefix(POLICY).takeIf { id -> id != it }?.toIntOrNull() }
+        ?.filter { it < coreCount }
+        ?.sorted()
+        ?.toIntArray()
+        ?.takeIf { it.isNotEmpty() }
+        ?: intArrayOf(0)
+
+    private val curFreqNodes = Array(coreCount) {
+        node("sys/devices/system/cpu/cpu$it/cpufreq/scaling_cur_freq", 32)
+    }
+    private val maxFreqNodes = Array(coreCount) {
+        node("sys/devices/system/cpu/cpu$it/cpufreq/scaling_max_freq", 32)
+    }
+
+    private fun node(path: String, capacity: Int) =
+        nodes.getOrPut(path) { Node(File(root, path), capacity) }
+
+    @Synchronized
+    fun readMemInfo(out: MemInfo): Boolean {
+        val node = memInfoNode
+        if (node.read() <= 0) return false
+        val buf = node.buffer
+        out.totalKb = valueOf(buf, KEY_MEM_TOTAL)
+        out.freeKb = valueOf(buf, KEY_MEM_FREE)
+        out.availableKb = valueOf(buf, KEY_MEM_AVAILABLE)
+        out.cachedKb = valueOf(buf, KEY_CACHED)
+        out.swapTotalKb = valueOf(buf, KEY_SWAP_TOTAL)
+        out.swapFreeKb = valueOf(buf, KEY_SWAP_FREE)
+        return out.totalKb > 0
+    }
+
+    @Synchronized
+    fun readCpuTimes(out: CpuTimes): Boolean {
+        val node = statNode
+        if (node.read() <= 0) return false
+        val buf = node.buffer
+        val limit = buf.limit()
+        out.online.fill(false)
+        var line = 0
+        while (line < limit && matchesAt(buf, line, KEY_CPU)) {
+            var pos = line + KEY_CPU.size
+            val index: Int
+            if (pos >= limit) break
+            if (buf.get(pos) == SPACE) {
+                index = out.coreCount
+            } else {
+                val core = parseLong(buf, pos)
+                pos = cursor
+                index = if (core in 0 until out.coreCount) core.toInt() else -1
+            }
+            if (index >= 0) {
+                // user nice system idle iowait irq softirq steal
+                var total = 0L
+                var idle = 0L
+                for (field in 0 until 8) {
+                    val value = parseLong(buf, pos)
+                    if (value < 0) break
+                    pos = cursor
+                    total += value
+                    if (field == 3 || field == 4) idle += value
+                }
+                out.total[index] = total
+                out.idle[index] = idle
+                out.online[index] = true
+            }
+            line = nextLine(buf, pos)
+        }
+        return out.online[out.coreCount]
+    }
+
+    /** Fills [out] with the 1, 5 and 15 minute load averages */
+    @Synchronized
+    fun readLoadAvg(out: FloatArray): Boolean {
+        val node = loadAvgNode
+        if (node.read() <= 0) return false
+        var pos = 0
+        for (i in 0 until minOf(3, out.size)) {
+            out[i] = parseDecimal(node.buffer, pos)
+            pos = cursor
+        }
+        return true
+    }
+
+    /** Current frequency of [core] in kHz, or -1 when unavailable */
+    @Synchronized
+    fun readCpuFreqKHz(core: Int): Long = readLong(curFreqNodes.getOrNull(core))
+
+    /** Policy cap of [core] in kHz, or -1 when unavailable */
+    @Synchronized
+    fun readCpuMaxFreqKHz(core: Int): Long = readLong(maxFreqNodes.getOrNull(core))
+
+    /**
+     * Any sysfs node holding a single integer, e.g. a thermal zone's temp.
+     * The path is relative to [root] and its node is kept open after the first use.
+     */
+    @Synchronized
+    fun readSysfsLong(path: String): Long = readLong(node(path, 32))
+
+    /** Temperature of thermal_zone[zone] in millidegrees Celsius, or -1 */
+    @Synchronized
+    fun readThermalZone(zone: Int): Long = readLong(thermalNodes.getOrPut(zone) {
+        node("sys/class/thermal/$THERMAL_ZONE$zone/temp", 32)
+    })
+
+    /** Finds the thermal zone whose type starts with one of [types], setup time only */
+    fun findThermalZone(vararg types: String): Int {
+        val zones = File(root, "sys/class/thermal").list() ?: return -1
+        val ids = zones.mapNotNull { it.removePrefix(THERMAL_ZONE).takeIf { id -> id != it }?.toIntOrNull() }
+            .sorted()
+        types.forEach { type ->
+            ids.forEach { id ->
+                val name = try {
+                    File(root, "sys/class/thermal/$THERMAL_ZONE$id/type").readText().trim()
+                } catch (e: IOException) {
+                    null
+                }
+                if (name?.startsWith(type) == true) return id
+            }
+        }
+        return -1
+    }
+
+    @Synchronized
+    fun close() {
+        nodes.values.forEach { it.close() }
+    }
+
+    private fun readLong(node: Node?): Long {
+        if (node == null || node.read() <= 0) return -1
+        return parseLong(node.buffer, 0)
+    }
+
+    private fun valueOf(buf: ByteBuffer, key: ByteArray): Long {
+        val limit = buf.limit()
+        var line = 0
+        while (line < limit) {
+            if (matchesAt(buf, line, key)) return parseLong(buf, line + key.size)
+            line = nextLine(buf, line)
+        }
+        return 0
+    }
+
+    private fun matchesAt(buf: ByteBuffer, pos: Int, key: ByteArray): Boolean {
+        if (pos + key.size > buf.limit()) return false
+        for (i in key.indices) {
+            if (buf.get(pos + i) != key[i]) return false
+        }
+        return true
+    }
+
+    private fun nextLine(buf: ByteBuffer, from: Int): Int {
+        val limit = buf.limit()
+        var pos = from
+        while (pos < limit && buf.get(pos) != NEWLINE) pos++
+        return pos + 1
+    }
+
+    /** Skips blanks, parses an unsigned integer and leaves [cursor] behind it. -1 if none */
+    private fun parseLong(buf: ByteBuffer, from: Int): Long {
+        val limit = buf.limit()
+        var pos = from
+        while (pos < limit && (buf.get(pos) == SPACE || buf.get(pos) == TAB)) pos++
+        var value = -1L
+        while (pos < limit) {
+            val digit = buf.get(pos) - ZERO
+            if (digit !in 0..9) break
+            value = (if (value < 0) 0 else value) * 10 + digit
+            pos++
+        }
+        cursor = pos
+        return value
+    }
+
+    private fun parseDecimal(buf: ByteBuffer, from: Int): Float {
+        val whole = parseLong(buf, from)
+        if (whole < 0) return 0f
+        var pos = cursor
+        if (pos >= buf.limit() || buf.get(pos) != DOT) return whole.toFloat()
+        pos++
+        var fraction = 0L
+        var scale = 1L
+        while (pos < buf.limit()) {
+            val digit = buf.get(pos) - ZERO
+            if (digit !in 0..9) break
+            fraction = fraction * 10 + digit
+            scale *= 10
+            pos++
+        }
+        cursor = pos
+        return whole + fraction.toFloat() / scale
+    }
+
+    companion object {
+        private const val SPACE = ' '.code.toByte()
+        private const val TAB = '\t'.code.toByte()
+        private const val NEWLINE = '\n'.code.toByte()
+        private const val DOT = '.'.code.toByte()
+        private const val ZERO = '0'.code
+        private const val THERMAL_ZONE = "thermal_zone"
+        private const val POLICY = "policy"
+
+        private val CPU_DIR = Regex("cpu[0-9]+")
+
+        private val KEY_CPU = "cpu".toByteArray()
+        private val KEY_MEM_TOTAL = "MemTotal:".toByteArray()
+        private val KEY_MEM_FREE = "MemFree:".toByteArray()
+        private val KEY_MEM_AVAILABLE = "MemAvailable:".toByteArray()
+        private val KEY_CACHED = "Cached:".toByteArray()
+        private val KEY_SWAP_TOTAL = "SwapTotal:".toByteArray()
+        private val KEY_SWAP_FREE = "SwapFree:".toByteArray()
+    }
+}
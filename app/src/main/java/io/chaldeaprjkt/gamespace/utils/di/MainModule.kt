@@ -22,11 +22,25 @@ import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.android.qualifiers.ApplicationContext
 import dagger.hilt.components.SingletonComponent
+import io.chaldeaprjkt.gamespace.data.AppIconLoader
+import io.chaldeaprjkt.gamespace.data.AppInfoCache
 import io.chaldeaprjkt.gamespace.data.AppSettings
 import io.chaldeaprjkt.gamespace.data.GameSession
+import io.chaldeaprjkt.gamespace.data.PerformanceBaselines
+import io.chaldeaprjkt.gamespace.data.SessionLog
 import io.chaldeaprjkt.gamespace.data.SystemSettings
+import io.chaldeaprjkt.gamespace.gamebar.CpuMonitor
+import io.chaldeaprjkt.gamespace.gamebar.FrameRateMonitor
+import io.chaldeaprjkt.gamespace.gamebar.OverlayCostMonitor
+import io.chaldeaprjkt.gamespace.gamebar.PowerEstimator
+import io.chaldeaprjkt.gamespace.gamebar.SessionRecorder
+import io.chaldeaprjkt.gamespace.gamebar.StutterDetector
+import io.chaldeaprjkt.gamespace.gamebar.TelemetrySampler
+import io.chaldeaprjkt.gamespace.gamebar.ThermalMonitor
 import io.chaldeaprjkt.gamespace.utils.GameModeUtils
 import io.chaldeaprjkt.gamespace.utils.ScreenUtils
+import io.chaldeaprjkt.gamespace.utils.SystemMetricsReader
+import java.io.File
 import javax.inject.Singleton
 
 
@@ -44,6 +58,95 @@ object MainModule {
     @Singleton
     fun provideGameModeUtils(@ApplicationContext context: Context) = GameModeUtils(context)
 
+    @Provides
+    @Singleton
+    fun provideOverlayCostMonitor() = OverlayCostMonitor()
+
+    @Provides
+    @Singleton
+    fun provideFrameRateMonitor(@ApplicationContext context: Context) = FrameRateMonitor(context)
+
+    @Provides
+    @Singleton
+    fun provideSessionLog(@ApplicationContext context: Context) =
+        SessionLog(File(context.filesDir, SessionLog.FILE_NAME))
+
+    @Provides
+    @Singleton
+    fun provideSessionRecorder(
+        @ApplicationContext context: Context,
+        frameRateMonitor: FrameRateMonitor,
+        gameModeUtils: GameModeUtils,
+        sessionLog: SessionLog,
+        telemetrySampler: TelemetrySampler,
+        thermalMonitor: ThermalMonitor,
+        powerEstimator: PowerEstimator,
+        stutterDetector: StutterDetector,
+        performanceBaselines: PerformanceBaselines
+    ) = SessionRecorder(
+        context, frameRateMonitor, gameModeUtils, sessionLog, telemetrySampler, thermalMonitor,
+        powerEstimator, stutterDetector, performanceBaselines
+    )
+
+    @Provides
+    @Singleton
+    fun providePerformanceBaselines(@ApplicationContext context: Context, gson: Gson) =
+        PerformanceBaselines(context, gson)
+
+    @Provides
+    @Singleton
+    fun provideStutterDetector(
+        frameRateMonitor: FrameRateMonitor,
+        thermalMonitor: ThermalMonitor,
+        overlayCostMonitor: OverlayCostMonitor
+    ) = StutterDetector(frameRateMonitor, thermalMonitor, overlayCostMonitor)
+
+    @Provides
+    @Singleton
+    fun providePowerEstimator(
+        @ApplicationContext context: Context,
+        gameModeUtils: GameModeUtils,
+        telemetrySampler: TelemetrySampler
+    ) = PowerEstimator(context, gameModeUtils, telemetrySampler)
+
+    @Provides
+    @Singleton
+    fun provideThermalMonitor(
+        @ApplicationContext context: Context,
+        appSettings: AppSettings,
+        systemSettings: SystemSettings,
+        gameModeUtils: GameModeUtils,
+        telemetrySampler: TelemetrySampler
+    ) = ThermalMonitor(context, appSettings, systemSettings, gameModeUtils, telemetrySampler)
+
+    @Provides
+    @Singleton
+    fun provideTelemetrySampler(
+        @ApplicationContext context: Context,
+        metricsReader: SystemMetricsReader
+    ) = TelemetrySampler(context, metricsReader)
+
+    @Provides
+    @Singleton
+    fun provideSystemMetricsReader() = SystemMetricsReader()
+
+    @Provides
+    @Singleton
+    fun provideCpuMonitor(
+        metricsReader: SystemMetricsReader,
+        telemetrySampler: TelemetrySampler
+    ) = CpuMonitor(metricsReader, telemetrySampler)
+
+    @Provides
+    @Singleton
+    fun provideAppInfoCache(@ApplicationContext context: Context) =
+        AppInfoCache(context, File(context.cacheDir, AppInfoCache.DIR_NAME))
+
+    @Provides
+    @Singleton
+    fun provideAppIconLoader(@ApplicationContext context: Context, appInfoCache: AppInfoCache) =
+        AppIconLoader(context, appInfoCache)
+
     @Provides
     @Singleton
     fun provideAppSettings(@ApplicationContext context: Context) = AppSettings(context)
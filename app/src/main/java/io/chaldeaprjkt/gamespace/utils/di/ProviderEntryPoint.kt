@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.utils.di
+
+import dagger.hilt.EntryPoint
+import dagger.hilt.InstallIn
+import dagger.hilt.components.SingletonComponent
+import io.chaldeaprjkt.gamespace.data.SessionLog
+import io.chaldeaprjkt.gamespace.gamebar.FrameRateMonitor
+
+@EntryPoint
+@InstallIn(SingletonComponent::class)
+interface ProviderEntryPoint {
+    fun sessionLog(): SessionLog
+    fun frameRateMonitor(): FrameRateMonitor
+}
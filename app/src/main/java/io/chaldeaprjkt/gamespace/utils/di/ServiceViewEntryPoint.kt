@@ -3,8 +3,17 @@ package io.chaldeaprjkt.gamespace.utils.di
 import dagger.hilt.EntryPoint
 import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
+import io.chaldeaprjkt.gamespace.data.AppIconLoader
+import io.chaldeaprjkt.gamespace.data.AppInfoCache
 import io.chaldeaprjkt.gamespace.data.AppSettings
 import io.chaldeaprjkt.gamespace.data.SystemSettings
+import io.chaldeaprjkt.gamespace.gamebar.CpuMonitor
+import io.chaldeaprjkt.gamespace.gamebar.FrameRateMonitor
+import io.chaldeaprjkt.gamespace.gamebar.OverlayCostMonitor
+import io.chaldeaprjkt.gamespace.gamebar.PowerEstimator
+import io.chaldeaprjkt.gamespace.gamebar.StutterDetector
+import io.chaldeaprjkt.gamespace.gamebar.TelemetrySampler
+import io.chaldeaprjkt.gamespace.gamebar.ThermalMonitor
 import io.chaldeaprjkt.gamespace.utils.GameModeUtils
 import io.chaldeaprjkt.gamespace.utils.ScreenUtils
 
@@ -13,7 +22,16 @@ import io.chaldeaprjkt.gamespace.utils.ScreenUtils
 @InstallIn(SingletonComponent::class)
 interface ServiceViewEntryPoint {
     fun appSettings(): AppSettings
+    fun appInfoCache(): AppInfoCache
+    fun appIconLoader(): AppIconLoader
     fun systemSettings(): SystemSettings
     fun screenUtils(): ScreenUtils
     fun gameModeUtils(): GameModeUtils
+    fun overlayCostMonitor(): OverlayCostMonitor
+    fun frameRateMonitor(): FrameRateMonitor
+    fun telemetrySampler(): TelemetrySampler
+    fun cpuMonitor(): CpuMonitor
+    fun thermalMonitor(): ThermalMonitor
+    fun powerEstimator(): PowerEstimator
+    fun stutterDetector(): StutterDetector
 }
@@ -18,15 +18,15 @@
 package io.chaldeaprjkt.gamespace.widget
 
 import android.annotation.SuppressLint
-import android.content.BroadcastReceiver
 import android.content.Context
-import android.content.Intent
-import android.content.IntentFilter
-import android.os.BatteryManager
 import android.util.AttributeSet
 import android.widget.TextView
 
 import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.gamebar.TelemetrySampler
+import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint
+import io.chaldeaprjkt.gamespace.utils.entryPointOf
+import kotlin.math.roundToInt
 
 @SuppressLint("AppCompatCustomView")
 class BatteryView @JvmOverloads constructor(
@@ -36,35 +36,40 @@ class BatteryView @JvmOverloads constructor(
     defStyleRes: Int = 0,
 ) : TextView(context, attrs, defStyleAttr, defStyleRes) {
 
-    private val batteryChangeReceiver = object : BroadcastReceiver() {
-        override fun onReceive(context: Context, intent: Intent) {
-            if (intent.action == Intent.ACTION_BATTERY_CHANGED) {
-                val level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0)
-                val scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 0)
-                val percent = (level.toFloat() / scale * 100).toInt()
-                text = context.getString(R.string.battery_format, percent)
-            }
-        }
-    }
+    private val entryPoint by lazy { context.entryPointOf<ServiceViewEntryPoint>() }
+    private val telemetrySampler by lazy { entryPoint.telemetrySampler() }
+    private val powerEstimator by lazy { entryPoint.powerEstimator() }
+
+    private var batteryLevel = -1
+    private var drainMah = -1
+    private var powerDw = -1
 
-    init {
-        val batteryManager = context.getSystemService(BatteryManager::class.java)!!
-        text = context.getString(
-            R.string.battery_format,
-            batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
-        )
+    private val batteryListener = TelemetrySampler.Listener {
+        // the drain readout is only there while a session is measured on battery
+        val current = powerEstimator.currentMa
+        val showDrain = powerEstimator.isRunning && !it.isPlugged && !current.isNaN()
+        val newDrain = if (showDrain) current.roundToInt() else -1
+        val newPower = if (showDrain) (powerEstimator.powerMw / 100f).roundToInt() else -1
+        if (it.batteryLevel == batteryLevel && newDrain == drainMah && newPower == powerDw) {
+            return@Listener
+        }
+        batteryLevel = it.batteryLevel
+        drainMah = newDrain
+        powerDw = newPower
+        text = if (showDrain) {
+            context.getString(R.string.battery_drain_format, batteryLevel, drainMah, powerDw / 10f)
+        } else {
+            context.getString(R.string.battery_format, batteryLevel)
+        }
     }
 
     override fun onAttachedToWindow() {
         super.onAttachedToWindow()
-        context.registerReceiver(
-            batteryChangeReceiver,
-            IntentFilter(Intent.ACTION_BATTERY_CHANGED)
-        )
+        telemetrySampler.subscribe(batteryListener, true)
     }
 
     override fun onDetachedFromWindow() {
-        context.unregisterReceiver(batteryChangeReceiver)
+        telemetrySampler.unsubscribe(batteryListener)
         super.onDetachedFromWindow()
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.widget
+
+import android.content.Context
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.os.SystemClock
+import android.text.TextPaint
+import android.util.AttributeSet
+import android.view.View
+import kotlin.math.ceil
+
+/**
+ * Draws danmaku as comments scrolling right to left in horizontal lanes.
+ * Every comment moves at the same speed, so once the tail of a comment has
+ * entered the screen its lane can take the next one without the two ever
+ * overlapping. All comments are drawn by this one view, which invalidates
+ * once per frame while anything is on screen.
+ */
+class DanmakuView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0,
+) : View(context, attrs, defStyleAttr) {
+
+    fun interface Listener {
+        /** The last comment has left the screen */
+        fun onDanmakuIdle()
+    }
+
+    var listener: Listener? = null
+
+    /** Lanes in use, from [MAX_LANES] down to 1 when overlays have to be cheap */
+    var laneCount = MAX_LANES
+        set(value) {
+            val lanes = value.coerceIn(1, MAX_LANES)
+            if (field == lanes) return
+            field = lanes
+            requestLayout()
+        }
+
+    private val textPaint = TextPaint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = Color.WHITE
+        setShadowLayer(SHADOW_RADIUS, 0f, 0f, SHADOW_COLOR)
+    }
+    private var laneHeight = 0
+    private var baselineOffset = 0f
+
+    // active comments, in parallel arrays so scrolling allocates nothing
+    private val texts = arrayOfNulls<String>(MAX_ACTIVE)
+    private val widths = FloatArray(MAX_ACTIVE)
+    private val lanes = IntArray(MAX_ACTIVE)
+    private val startTimes = LongArray(MAX_ACTIVE)
+    private var activeCount = 0
+
+    // the comment that entered each lane last
+    private val laneStart = LongArray(MAX_LANES)
+    private val laneWidth = FloatArray(MAX_LANES)
+
+    // measured text by content, repeated and coalesced comments skip measuring
+    private val cacheTexts = arrayOfNulls<String>(CACHE_SIZE)
+    private val cacheHashes = IntArray(CACHE_SIZE)
+    private val cacheLines = arrayOfNulls<String>(CACHE_SIZE)
+    private val cacheWidths = FloatArray(CACHE_SIZE)
+    private val cacheUsed = LongArray(CACHE_SIZE)
+
+    val isIdle: Boolean
+        get() = activeCount == 0
+
+    fun setTextSize(px: Float) {
+        if (textPaint.textSize == px) return
+        textPaint.textSize = px
+        cacheTexts.fill(null)
+        cacheLines.fill(null)
+        val metrics = textPaint.fontMetrics
+        laneHeight = ceil(metrics.descent - metrics.ascent + LANE_SPACING * px).toInt()
+        baselineOffset = (laneHeight - (metrics.descent - metrics.ascent)) / 2 - metrics.ascent
+        requestLayout()
+    }
+
+    /** Time until a lane can take another comment */
+    fun timeUntilFreeLane(now: Long): Long {
+        if (activeCount == MAX_ACTIVE) return CROSSING_MS
+        var wait = Long.MAX_VALUE
+        for (lane in 0 until laneCount) {
+            wait = minOf(wait, laneWait(lane, now))
+            if (wait == 0L) break
+        }
+        return wait
+    }
+
+    /** Starts scrolling [text] in the first free lane, false if none is free */
+    fun add(text: String, now: Long = SystemClock.uptimeMillis()): Boolean {
+        if (activeCount == MAX_ACTIVE) return false
+        var lane = -1
+        for (i in 0 until laneCount) {
+            if (laneWait(i, now) == 0L) {
+                lane = i
+                break
+            }
+        }
+        if (lane < 0) return false
+        val slot = cacheSlotOf(text, now)
+        val i = activeCount++
+        texts[i] = cacheLines[slot]
+        widths[i] = cacheWidths[slot]
+        lanes[i] = lane
+        startTimes[i] = now
+        laneStart[lane] = now
+        laneWidth[lane] = widths[i]
+        postInvalidateOnAnimation()
+        return true
+    }
+
+    fun clear() {
+        val hadComments = activeCount > 0
+        texts.fill(null)
+        activeCount = 0
+        laneStart.fill(0L)
+        laneWidth.fill(0f)
+        invalidate()
+        if (hadComments) listener?.onDanmakuIdle()
+    }
+
+    override fun onMeasure(widthMeasureSpec: Int, heightMeasureSpec: Int) {
+        setMeasuredDimension(
+            getDefaultSize(suggestedMinimumWidth, widthMeasureSpec),
+            resolveSize(laneHeight * laneCount, heightMeasureSpec)
+        )
+    }
+
+    override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
+        // positions derive from the width, a rotation would make them jump
+        if (oldw != 0 && w != oldw) clear()
+    }
+
+    override fun onDraw(canvas: Canvas) {
+        if (activeCount == 0) return
+        val now = SystemClock.uptimeMillis()
+        val viewWidth = width.toFloat()
+        var i = 0
+        while (i < activeCount) {
+            val x = viewWidth - distanceAt(now - startTimes[i])
+            if (x + widths[i] < 0 || lanes[i] >= laneCount) {
+                removeAt(i)
+                continue
+            }
+            canvas.drawText(texts[i]!!, x, lanes[i] * laneHeight + baselineOffset, textPaint)
+            i++
+        }
+        if (activeCount > 0) {
+            postInvalidateOnAnimation()
+        } else {
+            listener?.onDanmakuIdle()
+        }
+    }
+
+    private fun laneWait(lane: Int, now: Long): Long {
+        if (laneStart[lane] == 0L) return 0L
+        // not laid out yet, every lane that got a comment stays taken for now
+        if (width == 0) return LAYOUT_RETRY_MS
+        // until the previous comment's tail plus a gap has entered the screen
+        val needed = laneWidth[lane] + LANE_GAP * textPaint.textSize
+        val travelled = distanceAt(now - laneStart[lane])
+        if (travelled >= needed) return 0L
+        return ceil((needed - travelled) * CROSSING_MS / width).toLong()
+    }
+
+    private fun distanceAt(elapsed: Long) = width.toFloat() * elapsed / CROSSING_MS
+
+    private fun removeAt(index: Int) {
+        val last = --activeCount
+        texts[index] = texts[last]
+        widths[index] = widths[last]
+        lanes[index] = lanes[last]
+        startTimes[index] = startTimes[last]
+        texts[last] = null
+    }
+
+    private fun cacheSlotOf(text: String, now: Long): Int {
+        val hash = text.hashCode()
+        var oldest = 0
+        for (i in 0 until CACHE_SIZE) {
+            if (cacheHashes[i] == hash && cacheTexts[i] == text) {
+                cacheUsed[i] = now
+                return i
+            }
+            if (cacheUsed[i] < cacheUsed[oldest]) oldest = i
+        }
+        val line = singleLine(text)
+        cacheTexts[oldest] = text
+        cacheHashes[oldest] = hash
+        cacheLines[oldest] = line
+        cacheWidths[oldest] = textPaint.measureText(line)
+        cacheUsed[oldest] = now
+        return oldest
+    }
+
+    private fun singleLine(text: String): String {
+        val line = text.replace('\n', ' ')
+        return if (line.length <= MAX_CHARS) line else line.substring(0, MAX_CHARS - 1) + "…"
+    }
+
+    companion object {
+        const val MAX_LANES = 3
+        private const val MAX_ACTIVE = 12
+        private const val CACHE_SIZE = 16
+        private const val MAX_CHARS = 80
+
+        /** Time a comment takes to cross the full width, the same for all so none catch up */
+        private const val CROSSING_MS = 7000L
+        private const val LAYOUT_RETRY_MS = 50L
+        /** Space between lanes and between comments in a lane, relative to the text size */
+        private const val LANE_SPACING = 0.3f
+        private const val LANE_GAP = 1.5f
+
+        private const val SHADOW_RADIUS = 4f
+        private const val SHADOW_COLOR = 0xcc000000.toInt()
+    }
+}
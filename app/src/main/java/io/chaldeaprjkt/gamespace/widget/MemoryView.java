@@ -15,31 +15,28 @@
  */
 package io.chaldeaprjkt.gamespace.widget;
 
-import android.app.ActivityManager;
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.AttributeSet;
-import android.view.View;
 import android.widget.TextView;
 
-import java.lang.Runnable;
+import dagger.hilt.EntryPoints;
 
 import io.chaldeaprjkt.gamespace.R;
+import io.chaldeaprjkt.gamespace.gamebar.TelemetrySampler;
+import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint;
 
-public class MemoryView extends TextView {
+public class MemoryView extends TextView implements TelemetrySampler.Listener {
 
-    private ActivityManager mActivityManager;
+    private TelemetrySampler mSampler;
 
-    private Handler mHandler;
-    private MemInfoWorker mWorker;
+    private int mAvailMemMiB = -1;
+    private int mTotalMemMiB = -1;
 
     public MemoryView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
-        mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        mHandler = new Handler(Looper.getMainLooper());
-        mWorker = new MemInfoWorker();
+        mSampler = EntryPoints.get(context.getApplicationContext(),
+                ServiceViewEntryPoint.class).telemetrySampler();
     }
 
     /* Hijack this method to detect visibility rather than
@@ -50,9 +47,9 @@ public class MemoryView extends TextView {
         super.setVisibility(visibility);
 
         if (visibility == VISIBLE)
-            mHandler.post(mWorker);
+            mSampler.subscribe(this, true);
         else
-            mHandler.removeCallbacks(mWorker);
+            mSampler.unsubscribe(this);
     }
 
     @Override
@@ -67,16 +64,15 @@ public class MemoryView extends TextView {
         super.onDetachedFromWindow();
     }
 
-    private class MemInfoWorker implements Runnable {
-        @Override
-        public void run() {
-            ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
-            mActivityManager.getMemoryInfo(memInfo);
-            int availMemMiB = (int)(memInfo.availMem / 1048576L);
-            int totalMemMiB = (int)(memInfo.totalMem / 1048576L);
-            setText(getContext().getString(R.string.memory_format, availMemMiB, totalMemMiB));
+    @Override
+    public void onSample(TelemetrySampler.Sample sample) {
+        int availMemMiB = (int)(sample.getAvailMem() / 1048576L);
+        int totalMemMiB = (int)(sample.getTotalMem() / 1048576L);
+        if (availMemMiB == mAvailMemMiB && totalMemMiB == mTotalMemMiB)
+            return;
 
-            mHandler.postDelayed(this, 1000);
-        }
+        mAvailMemMiB = availMemMiB;
+        mTotalMemMiB = totalMemMiB;
+        setText(getContext().getString(R.string.memory_format, availMemMiB, totalMemMiB));
     }
 }
@@ -1,23 +1,19 @@
 package io.chaldeaprjkt.gamespace.widget
 
-import android.app.ActivityTaskManager
 import android.content.Context
+import android.os.SystemClock
 import android.util.AttributeSet
 import android.view.LayoutInflater
-import android.view.WindowManager
 import android.widget.LinearLayout
 import android.widget.TextView
-import android.window.TaskFpsCallback
 import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.data.StutterEvent
+import io.chaldeaprjkt.gamespace.gamebar.CpuMonitor
+import io.chaldeaprjkt.gamespace.gamebar.FrameRateMonitor
+import io.chaldeaprjkt.gamespace.gamebar.StutterDetector
 import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint
-import io.chaldeaprjkt.gamespace.utils.dp
 import io.chaldeaprjkt.gamespace.utils.entryPointOf
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.Job
-import kotlinx.coroutines.launch
-import java.math.RoundingMode
-import java.text.DecimalFormat
+import kotlin.math.roundToInt
 
 class MenuSwitcher @JvmOverloads constructor(
     context: Context, attrs: AttributeSet? = null
@@ -28,19 +24,48 @@ class MenuSwitcher @JvmOverloads constructor(
     }
 
     private val appSettings by lazy { context.entryPointOf<ServiceViewEntryPoint>().appSettings() }
-    private val scope = CoroutineScope(Job() + Dispatchers.Main)
-    private val taskManager by lazy { ActivityTaskManager.getService() }
-
-    private val taskFpsCallback = object : TaskFpsCallback() {
-        override fun onFpsReported(fps: Float) {
-            if (isAttachedToWindow) {
-                onFrameUpdated(fps)
-            }
+    private val overlayCostMonitor by lazy {
+        context.entryPointOf<ServiceViewEntryPoint>().overlayCostMonitor()
+    }
+    private val frameRateMonitor by lazy {
+        context.entryPointOf<ServiceViewEntryPoint>().frameRateMonitor()
+    }
+    private val cpuMonitor by lazy { context.entryPointOf<ServiceViewEntryPoint>().cpuMonitor() }
+    private val stutterDetector by lazy {
+        context.entryPointOf<ServiceViewEntryPoint>().stutterDetector()
+    }
+    private var lastFpsRefresh = 0L
+
+    // Digits of the readout, reused so that a new sample doesn't allocate
+    private val fpsText = CharArray(MAX_FPS_DIGITS)
+    private val cpuText = CharArray(MAX_CPU_CHARS).also { it[it.lastIndex] = '%' }
+
+    private val fpsListener = FrameRateMonitor.OnFpsListener { fps ->
+        if (isAttachedToWindow) {
+            onFrameUpdated(fps)
+        }
+    }
+
+    // Stutters tint the FPS readout for a moment, the color tells the severity
+    private val stutterListener = StutterDetector.Listener { event ->
+        if (isAttachedToWindow && showFps) {
+            content?.setTextColor(context.getColor(
+                if (event.severity >= StutterEvent.SEVERITY_MAX) R.color.error else R.color.stutterMinor
+            ))
+            removeCallbacks(clearStutterAlert)
+            postDelayed(clearStutterAlert, STUTTER_ALERT_MS)
         }
     }
 
-    private val wm: WindowManager
-        get() = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
+    private val clearStutterAlert = Runnable {
+        content?.setTextColor(context.getColor(R.color.barButtonAccent))
+    }
+
+    private val cpuListener = CpuMonitor.Listener { monitor ->
+        if (isAttachedToWindow && showCpu) {
+            onCpuUpdated(monitor.peakLoad)
+        }
+    }
 
     private val content: TextView?
         get() = findViewById(R.id.menu_content)
@@ -51,56 +76,125 @@ class MenuSwitcher @JvmOverloads constructor(
             field = value
         }
 
+    // The FPS readout wins when both are enabled, the switcher only has room for one
+    var showCpu = false
+        set(value) {
+            setMenuIcon(null)
+            field = value
+        }
+
+    private val showReadout: Boolean
+        get() = showFps || showCpu
+
     var isDragged = false
         set(value) {
-            if (value && !showFps) setMenuIcon(R.drawable.ic_drag)
+            if (value && !showReadout) setMenuIcon(R.drawable.ic_drag)
             field = value
         }
 
     fun updateIconState(isExpanded: Boolean, location: Int) {
         showFps = if (isExpanded) false else appSettings.showFps
+        showCpu = if (isExpanded || showFps) false else appSettings.showCpu
         when {
             isExpanded -> R.drawable.ic_close
             location > 0 -> R.drawable.ic_arrow_right
             else -> R.drawable.ic_arrow_left
         }.let { setMenuIcon(it) }
-        updateFrameRateBinding()
+        updateReadoutBinding()
     }
 
-    private fun onFrameUpdated(newValue: Float) = scope.launch {
-        DecimalFormat("#").apply {
-            roundingMode = RoundingMode.HALF_EVEN
-            content?.text = this.format(newValue)
+    private fun onFrameUpdated(newValue: Float) {
+        // while degraded, the readout is only refreshed once in a while
+        val now = SystemClock.uptimeMillis()
+        if (overlayCostMonitor.isDegraded && now - lastFpsRefresh < DEGRADED_FPS_REFRESH_MS) {
+            return
         }
+        lastFpsRefresh = now
+        var value = newValue.roundToInt().coerceIn(0, MAX_FPS_VALUE)
+        var start = fpsText.size
+        do {
+            fpsText[--start] = '0' + value % 10
+            value /= 10
+        } while (value > 0)
+        content?.setText(fpsText, start, fpsText.size - start)
     }
 
-    private fun updateFrameRateBinding() {
+    private fun onCpuUpdated(peakLoad: Int) {
+        var value = peakLoad.coerceIn(0, 100)
+        var start = cpuText.lastIndex
+        do {
+            cpuText[--start] = '0' + value % 10
+            value /= 10
+        } while (value > 0)
+        content?.setText(cpuText, start, cpuText.size - start)
+    }
+
+    // Registration itself is owned by the monitors, this only follows the
+    // focused task and subscribes while the readout is visible.
+    private fun updateReadoutBinding() {
         if (showFps) {
-            taskManager?.focusedRootTaskInfo?.taskId?.let {
-                wm.registerTaskFpsCallback(it, Runnable::run, taskFpsCallback)
-            }
+            frameRateMonitor.ensureRegistered()
+            frameRateMonitor.addListener(fpsListener)
+            stutterDetector.addListener(stutterListener)
+        } else {
+            frameRateMonitor.removeListener(fpsListener)
+            stutterDetector.removeListener(stutterListener)
+            removeCallbacks(clearStutterAlert)
+            clearStutterAlert.run()
+        }
+        if (showCpu) {
+            cpuMonitor.addListener(cpuListener)
         } else {
-            wm.unregisterTaskFpsCallback(taskFpsCallback)
+            cpuMonitor.removeListener(cpuListener)
         }
     }
 
+    // The switcher keeps the width set by GameBarService for every icon so
+    // that toggling the bar never changes the precomputed bar geometry.
     private fun setMenuIcon(icon: Int?) {
-        when (icon) {
-            R.drawable.ic_close, R.drawable.ic_drag -> layoutParams.width = 36.dp
-            else -> layoutParams.width = LayoutParams.WRAP_CONTENT
-        }
-        val ic = icon?.takeIf { !showFps }?.let { resources.getDrawable(it, context.theme) }
-        content?.textScaleX = if (showFps) 1f else 0f
+        val ic = icon?.takeIf { !showReadout }?.let { resources.getDrawable(it, context.theme) }
+        content?.textScaleX = if (showReadout) 1f else 0f
         content?.setCompoundDrawablesRelativeWithIntrinsicBounds(null, ic, null, null)
     }
 
+    /** Width the switcher needs to show its widest readout without clipping */
+    fun measureReadoutWidth(): Int {
+        val text = content ?: return 0
+        val unspecified = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED)
+        val scaleX = text.textScaleX
+        val drawables = text.compoundDrawablesRelative
+        text.textScaleX = 1f
+        text.setCompoundDrawablesRelative(null, null, null, null)
+        var widest = 0
+        for (sample in READOUT_SAMPLES) {
+            text.text = sample
+            text.measure(unspecified, unspecified)
+            widest = maxOf(widest, text.measuredWidth)
+        }
+        text.text = null
+        text.textScaleX = scaleX
+        text.setCompoundDrawablesRelative(drawables[0], drawables[1], drawables[2], drawables[3])
+        return widest + paddingStart + paddingEnd
+    }
+
     override fun onAttachedToWindow() {
         super.onAttachedToWindow()
-        updateFrameRateBinding()
+        updateReadoutBinding()
     }
 
     override fun onDetachedFromWindow() {
         super.onDetachedFromWindow()
-        wm.unregisterTaskFpsCallback(taskFpsCallback)
+        frameRateMonitor.removeListener(fpsListener)
+        stutterDetector.removeListener(stutterListener)
+        cpuMonitor.removeListener(cpuListener)
+    }
+
+    companion object {
+        private const val DEGRADED_FPS_REFRESH_MS = 2000L
+        private const val MAX_FPS_DIGITS = 3
+        private const val MAX_FPS_VALUE = 999
+        private const val MAX_CPU_CHARS = 4
+        private const val STUTTER_ALERT_MS = 1500L
+        private val READOUT_SAMPLES = arrayOf("999", "100%")
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.widget
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.util.AttributeSet
+import android.widget.TextView
+import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint
+import io.chaldeaprjkt.gamespace.utils.entryPointOf
+
+/**
+ * Shows how much GameSpace's own overlays cost per frame
+ */
+@SuppressLint("AppCompatCustomView")
+class OverlayCostView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0,
+    defStyleRes: Int = 0,
+) : TextView(context, attrs, defStyleAttr, defStyleRes) {
+
+    private val overlayCostMonitor by lazy {
+        context.entryPointOf<ServiceViewEntryPoint>().overlayCostMonitor()
+    }
+
+    private val refresher = object : Runnable {
+        override fun run() {
+            val costMs = overlayCostMonitor.averageCostNanos / 1_000_000f
+            text = context.getString(
+                if (overlayCostMonitor.isDegraded) R.string.overlay_cost_degraded_format
+                else R.string.overlay_cost_format,
+                costMs
+            )
+            postDelayed(this, REFRESH_INTERVAL_MS)
+        }
+    }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        post(refresher)
+    }
+
+    override fun onDetachedFromWindow() {
+        removeCallbacks(refresher)
+        super.onDetachedFromWindow()
+    }
+
+    companion object {
+        private const val REFRESH_INTERVAL_MS = 1000L
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.widget
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.util.AttributeSet
+import android.widget.TextView
+import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.gamebar.TelemetrySampler
+import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint
+import io.chaldeaprjkt.gamespace.utils.entryPointOf
+import kotlin.math.roundToInt
+
+/**
+ * Shows the session's thermal load and the time left until throttling
+ */
+@SuppressLint("AppCompatCustomView")
+class ThermalView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0,
+    defStyleRes: Int = 0,
+) : TextView(context, attrs, defStyleAttr, defStyleRes) {
+
+    private val entryPoint by lazy { context.entryPointOf<ServiceViewEntryPoint>() }
+    private val thermalMonitor by lazy { entryPoint.thermalMonitor() }
+    private val telemetrySampler by lazy { entryPoint.telemetrySampler() }
+
+    private var shownLoad = -1
+    private var shownMinutes = -1L
+    private var shownMitigated = false
+
+    private val thermalListener = TelemetrySampler.Listener { update() }
+
+    private fun update() {
+        val headroom = thermalMonitor.headroom
+        if (headroom.isNaN()) {
+            if (shownLoad != -1 || text.isNullOrEmpty()) {
+                shownLoad = -1
+                text = context.getString(R.string.thermal_unavailable)
+            }
+            return
+        }
+        val load = (headroom * 100).roundToInt()
+        val seconds = thermalMonitor.secondsToThrottle
+        val minutes = if (seconds < 0) -1L else (seconds + 59) / 60
+        val mitigated = thermalMonitor.isMitigated
+        if (load == shownLoad && minutes == shownMinutes && mitigated == shownMitigated) return
+
+        shownLoad = load
+        shownMinutes = minutes
+        shownMitigated = mitigated
+        text = when {
+            mitigated -> context.getString(R.string.thermal_mitigated_format, load)
+            minutes < 0 -> context.getString(R.string.thermal_stable_format, load)
+            else -> context.getString(R.string.thermal_forecast_format, load, minutes)
+        }
+    }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        telemetrySampler.subscribe(thermalListener, true)
+    }
+
+    override fun onDetachedFromWindow() {
+        telemetrySampler.unsubscribe(thermalListener)
+        super.onDetachedFromWindow()
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.widget.tiles
+
+import android.content.Context
+import android.util.AttributeSet
+import android.view.View
+import io.chaldeaprjkt.gamespace.R
+import io.chaldeaprjkt.gamespace.gamebar.CpuMonitor
+import io.chaldeaprjkt.gamespace.utils.di.ServiceViewEntryPoint
+import io.chaldeaprjkt.gamespace.utils.entryPointOf
+
+class CpuTile @JvmOverloads constructor(
+    context: Context, attrs: AttributeSet? = null
+) : BaseTile(context, attrs) {
+
+    private val cpuMonitor by lazy { context.entryPointOf<ServiceViewEntryPoint>().cpuMonitor() }
+
+    private val freqs = StringBuilder()
+    private val bars = StringBuilder()
+
+    // The panel is removed from the window while hidden, so listening only
+    // while attached is what pauses the sampling.
+    private val cpuListener = CpuMonitor.Listener { onCpuSample(it) }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        showCpuInfo = appSettings.showCpu
+        title?.text = context.getString(R.string.cpu_title)
+        icon?.setImageResource(R.drawable.ic_cpu)
+        cpuMonitor.addListener(cpuListener)
+    }
+
+    override fun onDetachedFromWindow() {
+        cpuMonitor.removeListener(cpuListener)
+        super.onDetachedFromWindow()
+    }
+
+    private var showCpuInfo = false
+        set(value) {
+            field = value
+            appSettings.showCpu = value
+            isSelected = value
+        }
+
+    private fun onCpuSample(monitor: CpuMonitor) {
+        freqs.setLength(0)
+        monitor.clusterFreqMHz.forEach { mhz ->
+            if (freqs.isNotEmpty()) freqs.append('/')
+            if (mhz < 0) {
+                freqs.append('-')
+            } else {
+                freqs.append(mhz / 1000).append('.').append(mhz % 1000 / 100)
+            }
+        }
+        bars.setLength(0)
+        monitor.coreLoad.forEach { load ->
+            bars.append(if (load < 0) OFFLINE_CORE else LOAD_BARS[load * (LOAD_BARS.length - 1) / 100])
+        }
+        title?.text = context.getString(R.string.cpu_load_format, monitor.totalLoad)
+        summary?.text = context.getString(R.string.cpu_summary_format, freqs, bars)
+    }
+
+    override fun onClick(v: View?) {
+        super.onClick(v)
+        showCpuInfo = !showCpuInfo
+    }
+
+    companion object {
+        private const val LOAD_BARS = "▁▂▃▄▅▆▇█"
+        private const val OFFLINE_CORE = '·'
+    }
+}
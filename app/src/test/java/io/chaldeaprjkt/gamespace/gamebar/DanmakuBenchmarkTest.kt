@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.app.Application
+import android.app.Notification
+import android.content.Context
+import android.content.ContextWrapper
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.os.Looper
+import android.os.Process
+import android.os.SystemClock
+import android.service.notification.StatusBarNotification
+import android.view.WindowManager
+import io.chaldeaprjkt.gamespace.data.AppSettings
+import io.chaldeaprjkt.gamespace.data.SystemSettings
+import io.chaldeaprjkt.gamespace.utils.GameModeUtils
+import io.chaldeaprjkt.gamespace.utils.ScreenUtils
+import io.chaldeaprjkt.gamespace.utils.SystemMetricsReader
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import org.robolectric.annotation.GraphicsMode
+import java.lang.management.ManagementFactory
+import java.time.Duration
+
+/**
+ * Throughput and latency of the danmaku pipeline at 1, 10 and 100
+ * notifications per second from five apps. Runs the real DanmakuService,
+ * DanmakuQueue and DanmakuView on Robolectric's paused main looper, with
+ * windows going to a [FakeWindowManager] and frames drawn into a canvas
+ * that records which comments entered a lane.
+ *
+ * Notifications enter at [DanmakuServiceListener.process], everything the
+ * listener does except StatusBarNotification.getIsContentSecure, which
+ * Robolectric's framework doesn't have. Latency is the time from
+ * sbn.postTime until the comment is first drawn, for every notification a
+ * comment stands for. Notifications that coalesced into a comment count
+ * from their own postTime.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [33], application = Application::class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+class DanmakuBenchmarkTest {
+
+    private class Result(
+        val rate: Int,
+        val posted: Int,
+        val latencies: LongArray,
+        val dropped: Int,
+        val comments: Int,
+        val maxCommentsPerWindow: Int,
+        val queueDepths: IntArray,
+        val ingestBytes: Long,
+        val windowCalls: Int,
+    ) {
+        fun percentile(p: Int): Long =
+            if (latencies.isEmpty()) -1 else latencies[(latencies.size - 1) * p / 100]
+
+        override fun toString() = buildString {
+            appendLine("danmaku @ $rate/s: $posted posted, ${latencies.size} shown " +
+                    "in $comments comments, $dropped dropped")
+            appendLine("  latency ms p50=${percentile(50)} p90=${percentile(90)} " +
+                    "p99=${percentile(99)} max=${percentile(100)}")
+            appendLine("  queue depth per second ${queueDepths.joinToString(" ")}")
+            appendLine("  ingest bytes/notification ${ingestBytes / posted.coerceAtLeast(1)}")
+            append("  window calls/notification " +
+                    "%.3f".format(windowCalls.toFloat() / posted.coerceAtLeast(1)))
+        }
+    }
+
+    private lateinit var context: Context
+    private lateinit var windowManager: FakeWindowManager
+    private lateinit var service: DanmakuService
+    private lateinit var listener: DanmakuServiceListener
+
+    @Before
+    fun setUp() {
+        val app = RuntimeEnvironment.getApplication()
+        windowManager = FakeWindowManager(app.getSystemService(WindowManager::class.java))
+        context = object : ContextWrapper(app) {
+            override fun getApplicationContext() = this
+
+            override fun getSystemService(name: String): Any? =
+                if (name == Context.WINDOW_SERVICE) windowManager else super.getSystemService(name)
+        }
+        val appSettings = AppSettings(context)
+        val gameModeUtils = GameModeUtils(context)
+        val systemSettings = SystemSettings(context, gameModeUtils)
+        val sampler = TelemetrySampler(context, SystemMetricsReader())
+        val thermalMonitor =
+            ThermalMonitor(context, appSettings, systemSettings, gameModeUtils, sampler)
+        val overlayCostMonitor = OverlayCostMonitor()
+        val stutterDetector =
+            StutterDetector(FrameRateMonitor(context), thermalMonitor, overlayCostMonitor)
+        service = DanmakuService(context, appSettings, overlayCostMonitor, stutterDetector,
+            ScreenUtils(context))
+        service.init()
+        listener = DanmakuServiceListener()
+        listener.danmakuServiceInterface = service
+    }
+
+    @After
+    fun tearDown() {
+        service.destroy()
+    }
+
+    @Test
+    fun oneNotificationPerSecond() {
+        val result = run(rate = 1)
+        println(result)
+        // the first notifications find free lanes and show on the next frame
+        assertTrue(result.percentile(0) <= FRAME_MS)
+        assertSane(result)
+    }
+
+    @Test
+    fun tenNotificationsPerSecond() {
+        val result = run(rate = 10)
+        println(result)
+        assertSane(result)
+    }
+
+    @Test
+    fun hundredNotificationsPerSecond() {
+        val result = run(rate = 100)
+        println(result)
+        assertSane(result)
+    }
+
+    private fun assertSane(result: Result) {
+        assertEquals(result.posted, result.latencies.size + result.dropped)
+        assertTrue(result.comments > 0)
+        assertTrue(result.maxCommentsPerWindow <= MAX_COMMENTS_PER_WINDOW)
+        assertTrue(result.queueDepths.all { it <= APPS })
+        // one add and one remove per visible stretch of comments at most
+        assertTrue(windowManager.addCalls >= windowManager.removeCalls)
+        assertTrue(result.windowCalls <= result.comments * 2)
+    }
+
+    private fun run(rate: Int): Result {
+        val mainLooper = shadowOf(Looper.getMainLooper())
+        val recorder = Recorder()
+        val allocations = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+        val interval = 1000L / rate
+        val total = rate * RUN_SECONDS
+
+        val start = SystemClock.uptimeMillis()
+        val end = start + RUN_SECONDS * 1000L
+        val queueDepths = ArrayList<Int>()
+        var ingestBytes = 0L
+        var posted = 0
+        var nextPost = start
+        var nextFrame = start
+        var nextSample = start + 1000L
+
+        while (true) {
+            val now = SystemClock.uptimeMillis()
+            val drained = now >= end && service.isIdle
+            if (drained || now > end + DRAIN_TIMEOUT_MS) break
+
+            val next = minOf(if (posted < total) nextPost else Long.MAX_VALUE, nextFrame)
+            if (next > now) mainLooper.idleFor(Duration.ofMillis(next - now))
+            val time = SystemClock.uptimeMillis()
+
+            if (posted < total && time >= nextPost) {
+                val sbn = notificationOf(posted, time)
+                recorder.onPosted(sbn)
+                val before = allocations.getThreadAllocatedBytes(thread)
+                listener.process(sbn, null)
+                ingestBytes += allocations.getThreadAllocatedBytes(thread) - before
+                posted++
+                nextPost += interval
+            }
+            if (time >= nextFrame) {
+                mainLooper.idle()
+                val overlay = service.notificationOverlay
+                if (overlay.parent != null) overlay.draw(recorder)
+                recorder.onFrameDrawn()
+                nextFrame += FRAME_MS
+            }
+            if (time >= nextSample) {
+                queueDepths.add(service.queueDepth)
+                nextSample += 1000L
+            }
+        }
+
+        return Result(
+            rate = rate,
+            posted = posted,
+            latencies = recorder.latencies.toLongArray().also { it.sort() },
+            dropped = recorder.dropped + recorder.pendingCount,
+            comments = recorder.commentTimes.size,
+            maxCommentsPerWindow = recorder.maxCommentsWithin(RATE_WINDOW_MS),
+            queueDepths = queueDepths.toIntArray(),
+            ingestBytes = ingestBytes,
+            windowCalls = windowManager.calls,
+        )
+    }
+
+    private fun notificationOf(index: Int, postTime: Long): StatusBarNotification {
+        val app = index % APPS
+        val notification = Notification.Builder(context, CHANNEL)
+            .setSmallIcon(android.R.drawable.stat_notify_chat)
+            .setContentTitle("app$app")
+            .setContentText("Message $index")
+            .setCategory(Notification.CATEGORY_MESSAGE)
+            .setWhen(postTime)
+            .build()
+        // postTime is wall clock on a device, here it shares the looper's clock
+        return StatusBarNotification("$PACKAGE_PREFIX$app", context.packageName, index, null,
+            Process.myUid(), Process.myPid(), notification, Process.myUserHandle(), null, postTime)
+    }
+
+    /**
+     * Canvas that only looks at the comments being drawn. A comment that is
+     * further right than anything its lane had on the previous frame has
+     * just entered it, comments only ever move left.
+     */
+    private class Recorder : Canvas() {
+        // posted notifications not covered by a comment yet, per app
+        private val pending = Array(APPS) { ArrayDeque<Long>() }
+        private val rightmost = HashMap<Float, Float>()
+        private val drawnRightmost = HashMap<Float, Float>()
+
+        val latencies = ArrayList<Long>()
+        val commentTimes = ArrayList<Long>()
+        var dropped = 0
+            private set
+        val pendingCount: Int
+            get() = pending.sumOf { it.size }
+
+        fun onPosted(sbn: StatusBarNotification) {
+            pending[appOf(sbn.packageName)].addLast(sbn.postTime)
+        }
+
+        override fun drawText(text: String, x: Float, y: Float, paint: Paint) {
+            if (x > (rightmost[y] ?: Float.NEGATIVE_INFINITY)) onComment(text)
+            drawnRightmost[y] = maxOf(x, drawnRightmost[y] ?: Float.NEGATIVE_INFINITY)
+        }
+
+        fun onFrameDrawn() {
+            rightmost.clear()
+            rightmost.putAll(drawnRightmost)
+            drawnRightmost.clear()
+        }
+
+        fun maxCommentsWithin(windowMs: Long): Int {
+            var max = 0
+            var first = 0
+            for (last in commentTimes.indices) {
+                while (commentTimes[last] - commentTimes[first] >= windowMs) first++
+                max = maxOf(max, last - first + 1)
+            }
+            return max
+        }
+
+        // a comment stands for its app's newest notifications, the single
+        // text or all of those coalesced into it; older ones were dropped
+        private fun onComment(text: String) {
+            val match = checkNotNull(COMMENT.find(text)) { "unexpected comment $text" }
+            val app = pending[match.groupValues[1].toInt()]
+            val count = match.groupValues[2].toIntOrNull() ?: 1
+            check(app.size >= count) { "comment $text for ${app.size} pending" }
+            // frames are drawn right after the looper caught up with their time
+            val now = SystemClock.uptimeMillis()
+            while (app.size > count) {
+                app.removeFirst()
+                dropped++
+            }
+            while (app.isNotEmpty()) latencies.add(now - app.removeFirst())
+            commentTimes.add(now)
+        }
+
+        private fun appOf(packageName: String) =
+            packageName.removePrefix(PACKAGE_PREFIX).toInt()
+    }
+
+    companion object {
+        private const val APPS = 5
+        private const val PACKAGE_PREFIX = "io.chaldeaprjkt.bench.app"
+        private const val CHANNEL = "benchmark"
+
+        private const val RUN_SECONDS = 30
+        private const val DRAIN_TIMEOUT_MS = 60_000L
+        private const val FRAME_MS = 16L
+
+        // DanmakuQueue's display rate limit
+        private const val MAX_COMMENTS_PER_WINDOW = 6
+        private const val RATE_WINDOW_MS = 30_000L
+
+        // "[appN] Message i" or "[io.chaldeaprjkt.bench.appN] 3 new notifications"
+        private val COMMENT = Regex("""^\[(?:.*\.)?app(\d+)] (?:Message \d+|(\d+) new notification)""")
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class DanmakuDedupCacheTest {
+
+    @Test
+    fun burstOfSameKeyIsShownOnce() {
+        val cache = DanmakuDedupCache(capacity = 4, ttlMs = TTL)
+        assertTrue(cache.add(KEY_A, 1_000))
+        for (t in 1_001L..1_050L) {
+            assertFalse(cache.add(KEY_A, t))
+        }
+        assertEquals(1, cache.size)
+    }
+
+    @Test
+    fun burstKeepsTheEntryAliveWhileItLasts() {
+        val cache = DanmakuDedupCache(capacity = 4, ttlMs = TTL)
+        assertTrue(cache.add(KEY_A, 0))
+        // every repeat lands within the TTL of the previous one
+        for (t in TTL / 2..TTL * 3 step TTL / 2) {
+            assertFalse(cache.add(KEY_A, t))
+        }
+    }
+
+    @Test
+    fun fullCacheEvictsLeastRecentlySeen() {
+        val cache = DanmakuDedupCache(capacity = 3, ttlMs = TTL)
+        assertTrue(cache.add(KEY_A, 1))
+        assertTrue(cache.add(KEY_B, 2))
+        assertTrue(cache.add(KEY_C, 3))
+        // seeing A again makes B the least recently seen
+        assertFalse(cache.add(KEY_A, 4))
+
+        assertTrue(cache.add(KEY_D, 5))
+        assertEquals(3, cache.size)
+        assertFalse(cache.add(KEY_A, 6))
+        assertFalse(cache.add(KEY_C, 7))
+        assertFalse(cache.add(KEY_D, 8))
+        assertTrue(cache.add(KEY_B, 9))
+    }
+
+    @Test
+    fun evictionFollowsInsertionOrderWithoutRepeats() {
+        val cache = DanmakuDedupCache(capacity = 2, ttlMs = TTL)
+        assertTrue(cache.add(KEY_A, 1))
+        assertTrue(cache.add(KEY_B, 2))
+        assertTrue(cache.add(KEY_C, 3))
+        // A went first, B is still known
+        assertFalse(cache.add(KEY_B, 4))
+        assertTrue(cache.add(KEY_A, 5))
+        assertEquals(2, cache.size)
+    }
+
+    @Test
+    fun keyIsShownAgainAfterExpiry() {
+        val cache = DanmakuDedupCache(capacity = 4, ttlMs = TTL)
+        assertTrue(cache.add(KEY_A, 0))
+        assertFalse(cache.add(KEY_A, TTL))
+        // the repeat at TTL refreshed the entry, so it expires a TTL later
+        assertFalse(cache.add(KEY_A, TTL * 2))
+        assertTrue(cache.add(KEY_A, TTL * 3 + 1))
+        assertFalse(cache.add(KEY_A, TTL * 3 + 2))
+        assertEquals(1, cache.size)
+    }
+
+    @Test
+    fun clearForgetsEverything() {
+        val cache = DanmakuDedupCache(capacity = 4, ttlMs = TTL)
+        cache.add(KEY_A, 1)
+        cache.add(KEY_B, 2)
+        cache.clear()
+        assertEquals(0, cache.size)
+        assertTrue(cache.add(KEY_A, 3))
+    }
+
+    @Test
+    fun keyCombinesNotificationAndContent() {
+        val hash = DanmakuDedupCache.contentHashOf("title", "text", 42L)
+        assertEquals(
+            DanmakuDedupCache.keyOf("0|pkg|1|null|10001", hash),
+            DanmakuDedupCache.keyOf("0|pkg|1|null|10001", hash)
+        )
+        assertNotEquals(
+            DanmakuDedupCache.keyOf("0|pkg|1|null|10001", hash),
+            DanmakuDedupCache.keyOf("0|pkg|2|null|10001", hash)
+        )
+        assertNotEquals(
+            hash,
+            DanmakuDedupCache.contentHashOf("title", "edited text", 42L)
+        )
+    }
+
+    companion object {
+        private const val TTL = 10_000L
+
+        private const val KEY_A = 1L
+        private const val KEY_B = 2L
+        private const val KEY_C = 3L
+        private const val KEY_D = 4L
+    }
+}
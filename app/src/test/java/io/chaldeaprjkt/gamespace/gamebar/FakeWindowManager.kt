@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.gamebar
+
+import android.view.View
+import android.view.ViewGroup
+import android.view.WindowManager
+import android.widget.FrameLayout
+
+/**
+ * WindowManager that keeps added views in a plain container instead of
+ * real windows and counts every call, so overlay code can run in a JVM
+ * test. Views are laid out across the display width as a window would be,
+ * everything else goes to [real].
+ */
+class FakeWindowManager(private val real: WindowManager) : WindowManager by real {
+
+    private val windows = HashMap<View, FrameLayout>()
+
+    var addCalls = 0
+        private set
+    var updateCalls = 0
+        private set
+    var removeCalls = 0
+        private set
+
+    val calls: Int
+        get() = addCalls + updateCalls + removeCalls
+
+    override fun addView(view: View, params: ViewGroup.LayoutParams) {
+        addCalls++
+        check(view.parent == null) { "$view is already added" }
+        val window = FrameLayout(view.context)
+        window.addView(view, FrameLayout.LayoutParams(params.width, params.height))
+        windows[view] = window
+        layout(view)
+    }
+
+    override fun updateViewLayout(view: View, params: ViewGroup.LayoutParams) {
+        updateCalls++
+        checkNotNull(windows[view]) { "$view is not added" }
+        layout(view)
+    }
+
+    override fun removeView(view: View) {
+        removeCalls++
+        checkNotNull(windows.remove(view)) { "$view is not added" }.removeView(view)
+    }
+
+    override fun removeViewImmediate(view: View) = removeView(view)
+
+    private fun layout(view: View) {
+        val bounds = real.maximumWindowMetrics.bounds
+        view.measure(
+            View.MeasureSpec.makeMeasureSpec(bounds.width(), View.MeasureSpec.EXACTLY),
+            View.MeasureSpec.makeMeasureSpec(bounds.height(), View.MeasureSpec.AT_MOST)
+        )
+        view.layout(0, 0, view.measuredWidth, view.measuredHeight)
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2024 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.chaldeaprjkt.gamespace.utils
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class SystemMetricsReaderTest {
+
+    @get:Rule
+    val tmp = TemporaryFolder()
+
+    private lateinit var root: File
+    private lateinit var reader: SystemMetricsReader
+
+    @Before
+    fun setUp() {
+        root = tmp.root
+        write("proc/meminfo", MEMINFO)
+        write("proc/stat", STAT)
+        write("proc/loadavg", "1.25 0.50 0.05 2/345 6789\n")
+        for (core in 0 until CORES) {
+            write("sys/devices/system/cpu/cpu$core/cpufreq/scaling_cur_freq", "${1000000 + core}\n")
+            write("sys/devices/system/cpu/cpu$core/cpufreq/scaling_max_freq", "2000000\n")
+        }
+        File(root, "sys/devices/system/cpu/cpufreq/policy0").mkdirs()
+        File(root, "sys/devices/system/cpu/cpufreq/policy2").mkdirs()
+        write("sys/class/thermal/thermal_zone0/type", "battery\n")
+        write("sys/class/thermal/thermal_zone0/temp", "31000\n")
+        write("sys/class/thermal/thermal_zone3/type", "cpu-0-0\n")
+        write("sys/class/thermal/thermal_zone3/temp", "45500\n")
+        reader = SystemMetricsReader(root)
+    }
+
+    @After
+    fun tearDown() {
+        reader.close()
+    }
+
+    @Test
+    fun topologyComesFromTheCpuDirectory() {
+        assertEquals(CORES, reader.coreCount)
+        assertArrayEquals(intArrayOf(0, 2), reader.clusterFirstCores)
+    }
+
+    @Test
+    fun readsMemInfo() {
+        val info = SystemMetricsReader.MemInfo()
+        assertTrue(reader.readMemInfo(info))
+        assertEquals(7_800_000L, info.totalKb)
+        assertEquals(300_000L, info.freeKb)
+        assertEquals(2_500_000L, info.availableKb)
+        // SwapCached comes first and must not be taken for Cached
+        assertEquals(1_900_000L, info.cachedKb)
+        assertEquals(4_000_000L, info.swapTotalKb)
+        assertEquals(3_500_000L, info.swapFreeKb)
+    }
+
+    @Test
+    fun readsCpuTimesAndOfflineCores() {
+        val times = SystemMetricsReader.CpuTimes(reader.coreCount)
+        assertTrue(reader.readCpuTimes(times))
+        // aggregate line: idle and iowait count as idle
+        assertEquals(1000L + 20 + 300 + 5000 + 40 + 10 + 5 + 0, times.total[CORES])
+        assertEquals(5000L + 40, times.idle[CORES])
+        assertEquals(100L + 5 + 30 + 1000 + 10 + 1 + 1 + 0, times.total[0])
+        assertEquals(1010L, times.idle[0])
+        assertTrue(times.online[0])
+        assertTrue(times.online[1])
+        // cpu2 is missing from the fake /proc/stat
+        assertFalse(times.online[2])
+        assertTrue(times.online[3])
+    }
+
+    @Test
+    fun readsLoadAvg() {
+        val load = FloatArray(3)
+        assertTrue(reader.readLoadAvg(load))
+        assertArrayEquals(floatArrayOf(1.25f, 0.5f, 0.05f), load, 0.0001f)
+    }
+
+    @Test
+    fun readsFrequenciesAndThermalZones() {
+        assertEquals(1_000_002L, reader.readCpuFreqKHz(2))
+        assertEquals(2_000_000L, reader.readCpuMaxFreqKHz(3))
+        assertEquals(-1L, reader.readCpuFreqKHz(CORES))
+        assertEquals(3, reader.findThermalZone("cpu"))
+        assertEquals(-1, reader.findThermalZone("gpu"))
+        assertEquals(45_500L, reader.readThermalZone(3))
+        assertEquals(31_000L, reader.readSysfsLong("sys/class/thermal/thermal_zone0/temp"))
+    }
+
+    @Test
+    fun rereadsChangedContents() {
+        val info = SystemMetricsReader.MemInfo()
+        val times = SystemMetricsReader.CpuTimes(reader.coreCount)
+        val load = FloatArray(3)
+        assertTrue(reader.readMemInfo(info))
+        assertTrue(reader.readCpuTimes(times))
+        assertTrue(reader.readLoadAvg(load))
+        assertEquals(1_000_001L, reader.readCpuFreqKHz(1))
+        assertEquals(45_500L, reader.readThermalZone(3))
+
+        // shorter contents than before, nothing of the old read may remain
+        write("proc/meminfo", "MemTotal: 7800000 kB\nMemAvailable: 900 kB\n")
+        write("proc/stat", "cpu  1 2 3 4 5 6 7 8 0 0\ncpu0 1 0 0 1 0 0 0 0 0 0\n")
+        write("proc/loadavg", "9.5 8 7.25 1/1 1\n")
+        write("sys/devices/system/cpu/cpu1/cpufreq/scaling_cur_freq", "300000\n")
+        write("sys/class/thermal/thermal_zone3/temp", "9\n")
+
+        assertTrue(reader.readMemInfo(info))
+        assertEquals(900L, info.availableKb)
+        assertEquals(0L, info.freeKb)
+        assertEquals(0L, info.cachedKb)
+        assertTrue(reader.readCpuTimes(times))
+        assertEquals(36L, times.total[CORES])
+        assertEquals(9L, times.idle[CORES])
+        assertTrue(times.online[0])
+        assertFalse(times.online[1])
+        assertTrue(reader.readLoadAvg(load))
+        assertArrayEquals(floatArrayOf(9.5f, 8f, 7.25f), load, 0.0001f)
+        assertEquals(300_000L, reader.readCpuFreqKHz(1))
+        assertEquals(9L, reader.readThermalZone(3))
+    }
+
+    @Test
+    fun missingNodesAreReportedAndStayMissing() {
+        assertTrue(File(root, "proc/loadavg").delete())
+        assertFalse(reader.readLoadAvg(FloatArray(3)))
+        assertEquals(-1L, reader.readThermalZone(7))
+        // showing up later doesn't matter, a missing node is never retried
+        write("proc/loadavg", "1.0 1.0 1.0 1/1 1\n")
+        assertFalse(reader.readLoadAvg(FloatArray(3)))
+    }
+
+    private fun write(path: String, text: String) {
+        File(root, path).apply { parentFile?.mkdirs() }.writeText(text)
+    }
+
+    companion object {
+        private const val CORES = 4
+
+        private val MEMINFO = """
+            MemTotal:        7800000 kB
+            MemFree:          300000 kB
+            MemAvailable:    2500000 kB
+            Buffers:           12000 kB
+            SwapCached:         5000 kB
+            Cached:          1900000 kB
+            SwapTotal:       4000000 kB
+            SwapFree:        3500000 kB
+        """.trimIndent() + "\n"
+
+        private val STAT = """
+            cpu  1000 20 300 5000 40 10 5 0 0 0
+            cpu0 100 5 30 1000 10 1 1 0 0 0
+            cpu1 200 5 70 1500 10 3 1 0 0 0
+            cpu3 700 10 200 2500 20 6 3 0 0 0
+            intr 123456 0 0
+            ctxt 987654
+        """.trimIndent() + "\n"
+    }
+}